@@ -0,0 +1,249 @@
+package fr.univtln.pegliasco.tp;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.Message;
+import discord4j.discordjson.Id;
+import discord4j.discordjson.json.MemberData;
+import discord4j.discordjson.json.MessageData;
+import discord4j.discordjson.json.UserData;
+import discord4j.discordjson.json.UserWithMemberData;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Données des benchmarks, générées de façon déterministe :
+ * <ul>
+ *     <li>réponse longue du modèle en français (emoji, listes, tableaux, blocs de code) ;</li>
+ *     <li>corps JSON du backend au format Ollama, complet ou en NDJSON (un token par ligne) ;</li>
+ *     <li>membres synthétiques d'une grande guilde ;</li>
+ *     <li>trafic de messages d'un serveur actif, dont une petite part mentionne le bot.</li>
+ * </ul>
+ */
+final class Fixtures {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String MODEL = "llama3.1:8b-instruct-q4_K_M";
+    private static final int CONTEXT_LENGTH = 4096;
+
+    private Fixtures() {
+    }
+
+    /** La réponse de référence (~4,5 Ko), répétée {@code copies} fois. */
+    static String longAnswer(int copies) {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/reponse-longue.md")) {
+            if (in == null) throw new IllegalStateException("fixtures/reponse-longue.md introuvable");
+            String answer = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return (answer + "\n").repeat(copies);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Découpe façon tokenizer : un mot et l'espace qui le suit, ou au plus 6 caractères. */
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean end = c == ' ' || c == '\n' || i + 1 - start >= 6;
+            if (end && !Character.isHighSurrogate(c)) {
+                tokens.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) tokens.add(text.substring(start));
+        return tokens;
+    }
+
+    /** Réponse non streamée de /api/generate, avec le tableau "context" qui en fait l'essentiel du poids. */
+    static byte[] generateBody(String answer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = JSON.createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeStringField("model", MODEL);
+            gen.writeStringField("created_at", "2025-01-15T10:24:31.512318Z");
+            gen.writeStringField("response", answer);
+            gen.writeBooleanField("done", true);
+            gen.writeStringField("done_reason", "stop");
+            writeContext(gen);
+            gen.writeNumberField("total_duration", 18_437_112_580L);
+            gen.writeNumberField("load_duration", 21_402_917L);
+            gen.writeNumberField("prompt_eval_count", 412);
+            gen.writeNumberField("eval_count", 1630);
+            gen.writeNumberField("eval_duration", 17_904_336_000L);
+            gen.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /** Réponse streamée : une ligne par token, puis la ligne finale (done=true) avec "context". */
+    static byte[] ndjson(List<String> tokens) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            for (String token : tokens) {
+                try (JsonGenerator gen = JSON.createGenerator(out)) {
+                    gen.writeStartObject();
+                    gen.writeStringField("model", MODEL);
+                    gen.writeStringField("created_at", "2025-01-15T10:24:31.512318Z");
+                    gen.writeStringField("response", token);
+                    gen.writeBooleanField("done", false);
+                    gen.writeEndObject();
+                }
+                out.write('\n');
+            }
+            try (JsonGenerator gen = JSON.createGenerator(out)) {
+                gen.writeStartObject();
+                gen.writeStringField("model", MODEL);
+                gen.writeStringField("response", "");
+                gen.writeBooleanField("done", true);
+                writeContext(gen);
+                gen.writeEndObject();
+            }
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /** Morceaux directs de {@code size} octets, comme ceux remis par reactor-netty. */
+    static List<ByteBuf> chunks(byte[] data, int size) {
+        List<ByteBuf> chunks = new ArrayList<>();
+        for (int i = 0; i < data.length; i += size) {
+            int length = Math.min(size, data.length - i);
+            chunks.add(Unpooled.directBuffer(length).writeBytes(data, i, length));
+        }
+        return chunks;
+    }
+
+    static ByteBuf direct(byte[] data) {
+        return Unpooled.directBuffer(data.length).writeBytes(data);
+    }
+
+    /**
+     * Membres d'une guilde synthétique ; chacun a 0 à 4 rôles parmi {@code roles}.
+     * Les accesseurs lus par le bot ne touchent qu'aux données : le client Gateway exigé par le
+     * constructeur est une coquille vide (une vraie instance demanderait une connexion à Discord).
+     */
+    @SuppressWarnings("deprecation") // discriminator : toujours lu par GuildFingerprints et le snapshot
+    static List<Member> members(int count, int roles) {
+        GatewayDiscordClient gateway = detachedGateway();
+        Random random = new Random(42);
+        long guildId = 1_100_000_000_000_000_000L;
+        Instant joined = Instant.parse("2021-03-01T12:00:00Z");
+        List<Member> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = guildId + 1 + i;
+            List<Id> roleIds = new ArrayList<>();
+            for (int r = random.nextInt(5); r > 0; r--) {
+                roleIds.add(Id.of(guildId + 10_000_000L + random.nextInt(roles)));
+            }
+            MemberData data = MemberData.builder()
+                    .user(UserData.builder()
+                            .id(Id.of(id))
+                            .username("membre_" + i)
+                            .discriminator("0")
+                            .build())
+                    .roles(roleIds)
+                    .joinedAt(joined.plusSeconds(i * 37L).toString())
+                    .deaf(false)
+                    .mute(false)
+                    .build();
+            members.add(new Member(gateway, data, guildId));
+        }
+        return members;
+    }
+
+    /**
+     * Messages reçus par le bot {@code selfId} : un sur {@code mentionEvery} le mentionne,
+     * quelques-uns viennent du bot lui-même ; les autres mentionnent parfois un autre utilisateur.
+     */
+    @SuppressWarnings("deprecation") // discriminator : encore exigé par le builder de UserData
+    static List<MessageData> messages(int count, long selfId, int mentionEvery) {
+        Random random = new Random(11);
+        String[] texts = {
+                "salut tout le monde", "quelqu'un a vu le sujet du TP ?", "ok merci 👍",
+                "```java\nSystem.out.println(\"hello\");\n```", "{\"type\": \"ping\"}", "mdr", ""
+        };
+        List<MessageData> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long author = i % 97 == 0 ? selfId : 2_000_000_000_000_000L + random.nextInt(500);
+            boolean mentionsBot = i % mentionEvery == 0;
+            boolean mentionsOther = !mentionsBot && random.nextInt(10) == 0;
+            String text = texts[random.nextInt(texts.length)];
+            List<UserWithMemberData> mentions = new ArrayList<>(1);
+            if (mentionsBot) {
+                mentions.add(mention(selfId));
+                text = "<@" + selfId + "> " + text;
+            } else if (mentionsOther) {
+                mentions.add(mention(author + 1));
+                text = "<@" + (author + 1) + "> " + text;
+            }
+            messages.add(MessageData.builder()
+                    .id(Id.of(3_000_000_000_000_000L + i))
+                    .channelId(Id.of(4_000_000_000_000_000L + random.nextInt(20)))
+                    .author(user(author))
+                    .content(text)
+                    .timestamp("2025-01-15T10:24:31.512318Z")
+                    .tts(false)
+                    .mentionEveryone(false)
+                    .pinned(false)
+                    .type(0)
+                    .mentions(mentions)
+                    .build());
+        }
+        return messages;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static UserData user(long id) {
+        return UserData.builder().id(Id.of(id)).username("membre_" + id % 1000).discriminator("0").build();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static UserWithMemberData mention(long id) {
+        return UserWithMemberData.builder().id(Id.of(id)).username("membre_" + id % 1000).discriminator("0").build();
+    }
+
+    /** Messages Discord4J autour des données brutes, comme ceux des MessageCreateEvent. */
+    static List<Message> wrap(List<MessageData> data) {
+        GatewayDiscordClient gateway = detachedGateway();
+        List<Message> messages = new ArrayList<>(data.size());
+        for (MessageData d : data) messages.add(new Message(gateway, d));
+        return messages;
+    }
+
+    private static GatewayDiscordClient detachedGateway() {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            sun.misc.Unsafe unsafe = (sun.misc.Unsafe) field.get(null);
+            return (GatewayDiscordClient) unsafe.allocateInstance(GatewayDiscordClient.class);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Impossible de créer le client Gateway factice", e);
+        }
+    }
+
+    private static void writeContext(JsonGenerator gen) throws IOException {
+        Random random = new Random(7);
+        gen.writeArrayFieldStart("context");
+        for (int i = 0; i < CONTEXT_LENGTH; i++) gen.writeNumber(random.nextInt(128_256));
+        gen.writeEndArray();
+    }
+}
@@ -0,0 +1,92 @@
+package fr.univtln.pegliasco.tp;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import discord4j.core.object.entity.Member;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /refresh sur une grande guilde : empreintes des membres, sérialisation JSON de chaque membre
+ * (celle de {@link GuildSnapshotWriter}) et delta sans changement contre les empreintes confirmées.
+ * Le flux complet de GuildSnapshotWriter n'est pas mesuré : il lui faut une vraie {@code Guild}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GuildSnapshotBenchmark {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /** Compte les octets sans les garder : seul le coût de sérialisation est mesuré. */
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Param({"100000"})
+    public int members;
+
+    private List<Member> guild;
+    private GuildFingerprints.Table committed;
+
+    @Setup
+    public void setup() {
+        guild = Fixtures.members(members, 250);
+        committed = fingerprints();
+    }
+
+    @Benchmark
+    public GuildFingerprints.Table fingerprints() {
+        GuildFingerprints.Table table = new GuildFingerprints.Table(16, guild.size());
+        for (Member m : guild) table.putMember(m.getId().asLong(), GuildFingerprints.of(m));
+        return table;
+    }
+
+    @Benchmark
+    public long serializeMembers() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (JsonGenerator gen = JSON.createGenerator(out)) {
+            gen.writeStartArray();
+            for (Member m : guild) GuildSnapshotWriter.writeMember(gen, m);
+            gen.writeEndArray();
+        }
+        return out.count;
+    }
+
+    /** Rien n'a changé depuis le dernier envoi : aucun membre n'est écrit. */
+    @Benchmark
+    public int unchangedDelta() {
+        int changed = 0;
+        for (Member m : guild) {
+            if (committed.member(m.getId().asLong()) != GuildFingerprints.of(m)) changed++;
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,80 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.User;
+import discord4j.discordjson.json.MessageData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tri des MessageCreateEvent : un message sur 200 mentionne le bot.
+ * {@code legacyChecks} reprend les tests de l'ancien handler (objets User, trim, replace) ;
+ * le score est par message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MessagePrefilterBenchmark {
+
+    private static final int MESSAGES = 10_000;
+    private static final long SELF_ID = 1_000_000_000_000_000_001L;
+
+    private List<Message> messages;
+    private MessagePrefilter prefilter;
+    private Snowflake selfId;
+
+    @Setup
+    public void setup() {
+        messages = Fixtures.wrap(Fixtures.messages(MESSAGES, SELF_ID, 200));
+        prefilter = new MessagePrefilter(new Metrics(), SELF_ID);
+        selfId = Snowflake.of(SELF_ID);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void prefilter(Blackhole bh) {
+        for (int i = 0; i < MESSAGES; i++) {
+            MessageData d = messages.get(i).getData();
+            bh.consume(MessagePrefilter.hasAttachments(d));
+            bh.consume(prefilter.classify(d));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void legacyChecks(Blackhole bh) {
+        for (int i = 0; i < MESSAGES; i++) {
+            bh.consume(legacyAccept(messages.get(i)));
+        }
+    }
+
+    private String legacyAccept(Message message) {
+        String content = message.getContent();
+        if (message.getAuthor().map(User::getId).filter(id -> id.equals(selfId)).isPresent()) return null;
+        if (content.trim().startsWith("{")) return null;
+        boolean isMentioned = message.getUserMentions().stream().anyMatch(u -> u.getId().equals(selfId));
+        if (!isMentioned) return null;
+        String sanitized = content
+                .replace("<@" + selfId.asString() + ">", "")
+                .replace("<@!" + selfId.asString() + ">", "")
+                .trim();
+        return sanitized.isBlank() ? null : sanitized;
+    }
+}
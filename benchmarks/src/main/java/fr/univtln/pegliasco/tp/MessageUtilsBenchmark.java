@@ -0,0 +1,73 @@
+package fr.univtln.pegliasco.tp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mise en forme des réponses du modèle : échappement Markdown et découpage en messages de 2000 caractères.
+ * {@code escapeThenSplit} est l'ancien chemin en deux passes, {@code streamingSplitter} celui de StreamingReply.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MessageUtilsBenchmark {
+
+    /** Nombre de copies de la réponse de référence (~4,5 Ko chacune). */
+    @Param({"1", "4"})
+    public int copies;
+
+    private String answer;
+    private List<String> tokens;
+
+    @Setup
+    public void setup() {
+        answer = Fixtures.longAnswer(copies);
+        tokens = Fixtures.tokens(answer);
+    }
+
+    @Benchmark
+    public String escape() {
+        return MessageUtils.escapeDiscordMarkdown(answer);
+    }
+
+    @Benchmark
+    public List<String> split() {
+        return MessageUtils.splitForDiscord(answer);
+    }
+
+    @Benchmark
+    public List<String> escapeThenSplit() {
+        return MessageUtils.splitForDiscord(MessageUtils.escapeDiscordMarkdown(answer));
+    }
+
+    @Benchmark
+    public void fusedEscapeSplit(Blackhole bh) {
+        MessageUtils.Splitter splitter = MessageUtils.Splitter.escaping(false);
+        bh.consume(splitter.feed(answer));
+        bh.consume(splitter.finish());
+    }
+
+    /** Un fragment par token, comme pendant la génération ; blocs de code laissés intacts. */
+    @Benchmark
+    public void streamingSplitter(Blackhole bh) {
+        MessageUtils.Splitter splitter = MessageUtils.Splitter.escaping(true);
+        for (String token : tokens) bh.consume(splitter.feed(token));
+        bh.consume(splitter.finish());
+    }
+}
@@ -0,0 +1,82 @@
+package fr.univtln.pegliasco.tp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Échanges JSON avec le backend : encodage de la requête, lecture d'une réponse complète
+ * (avec le tableau "context" d'Ollama) et d'une réponse NDJSON découpée en morceaux réseau.
+ * {@code legacyTreeText} reproduit l'ancienne lecture (corps en String puis arbre JsonNode).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OllamaCodecBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private OllamaCodec.Request request;
+    private ByteBuf body;
+    private List<ByteBuf> ndjson;
+
+    @Setup
+    public void setup() {
+        String answer = Fixtures.longAnswer(1);
+        request = new OllamaCodec.Request(answer, "summarize", true);
+        body = Fixtures.direct(Fixtures.generateBody(answer));
+        ndjson = Fixtures.chunks(Fixtures.ndjson(Fixtures.tokens(answer)), 1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        body.release();
+        ndjson.forEach(ByteBuf::release);
+    }
+
+    @Benchmark
+    public int encode() {
+        ByteBuf buf = OllamaCodec.encode(request);
+        int size = buf.readableBytes();
+        buf.release();
+        return size;
+    }
+
+    @Benchmark
+    public String text() {
+        return OllamaCodec.text(body);
+    }
+
+    @Benchmark
+    public String legacyTreeText() throws Exception {
+        String json = body.toString(StandardCharsets.UTF_8);
+        JsonNode node = MAPPER.readTree(json).path("response");
+        return node.asText();
+    }
+
+    @Benchmark
+    public void streamTokens(Blackhole bh) {
+        OllamaCodec.TokenDecoder decoder = new OllamaCodec.TokenDecoder();
+        for (ByteBuf chunk : ndjson) bh.consume(decoder.feed(chunk));
+        bh.consume(decoder.rest());
+    }
+}
@@ -0,0 +1,333 @@
+package fr.univtln.pegliasco.tp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Contrôle d'admission des appels au modèle (instances du backend partagées par tous les serveurs).
+ * <ul>
+ *     <li>file équitable : tourniquet entre serveurs, puis entre utilisateurs d'un même serveur ;</li>
+ *     <li>limite globale d'appels simultanés ajustée en AIMD, proportionnelle à la capacité du backend
+ *     ({@code capacity} : somme des poids des instances) : comme si chaque unité de capacité avait sa propre
+ *     limite, +capacité/limite quand la latence reste sous la cible, et sur dépassement, timeout ou erreur
+ *     (qui ne concernent en général qu'une instance) ×{@value #BACKOFF} sur la part d'une seule unité ;</li>
+ *     <li>délestage : file globale ou file du serveur pleine, ou attente trop longue →
+ *     {@link OverloadedException} avec un message pour l'utilisateur.</li>
+ * </ul>
+ * Le serveur et l'utilisateur sont lus dans le contexte Reactor ({@link #tenant(long, long)}) ;
+ * un abonné peut aussi y déposer {@link #onQueued(IntConsumer)} pour suivre sa position dans la file.
+ */
+public final class AdmissionController {
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+    private static final String TENANT_KEY = AdmissionController.class.getName() + ".tenant";
+    private static final String QUEUE_LISTENER_KEY = AdmissionController.class.getName() + ".queue";
+
+    private static final double BACKOFF = 0.75;
+    private static final int MIN_LIMIT = 1;
+
+    static final String OVERLOADED_MESSAGE =
+            "Le modèle est très sollicité en ce moment, réessayez dans quelques instants.";
+
+    /** Requête refusée par délestage ; le message est destiné à l'utilisateur. */
+    public static final class OverloadedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        OverloadedException() {
+            super(OVERLOADED_MESSAGE);
+        }
+    }
+
+    private record Tenant(long guildId, long userId) {}
+
+    private static final class Waiter {
+        final Tenant tenant;
+        final IntConsumer listener;
+        final Sinks.Empty<Void> permit = Sinks.empty();
+        boolean admitted;
+        boolean sampled;
+        long startNanos;
+        int lastPosition;
+
+        Waiter(Tenant tenant, IntConsumer listener) {
+            this.tenant = tenant;
+            this.listener = listener;
+        }
+    }
+
+    private final int capacity;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final int maxQueuePerGuild;
+    private final Duration maxWait;
+    private final long latencyTargetNanos;
+
+    // Tout l'état est protégé par le moniteur de l'instance
+    private final Map<Long, Map<Long, ArrayDeque<Waiter>>> guilds = new LinkedHashMap<>();
+    private final Map<Long, Integer> queuedByGuild = new LinkedHashMap<>();
+    private int queued;
+    private int listening;    // appels en file qui suivent leur position
+    private int inFlight;
+    private double limit;
+    private long shed;
+
+    /** {@code maxConcurrency} par unité de {@code capacity} (poids total des instances du backend). */
+    public AdmissionController(int maxConcurrency, int capacity, int maxQueue, int maxQueuePerGuild,
+                               Duration maxWait, Duration latencyTarget) {
+        this.capacity = Math.max(1, capacity);
+        this.maxLimit = Math.max(MIN_LIMIT, maxConcurrency * this.capacity);
+        this.maxQueue = maxQueue;
+        this.maxQueuePerGuild = maxQueuePerGuild;
+        this.maxWait = maxWait;
+        this.latencyTargetNanos = latencyTarget.toNanos();
+        this.limit = Math.max(MIN_LIMIT, maxLimit / 2);
+    }
+
+    /** Contexte à poser sur la chaîne d'une interaction : serveur (0 en MP) et auteur. */
+    public static Context tenant(long guildId, long userId) {
+        return Context.of(TENANT_KEY, new Tenant(guildId, userId));
+    }
+
+    /** Contexte recevant la position dans la file (1 = prochain servi) tant que l'appel attend. */
+    public static Context onQueued(IntConsumer listener) {
+        return Context.of(QUEUE_LISTENER_KEY, listener);
+    }
+
+    /** Abonné déposé par {@link #onQueued(IntConsumer)} ; null s'il n'y en a pas. */
+    static IntConsumer queueListener(ContextView ctx) {
+        return ctx.getOrDefault(QUEUE_LISTENER_KEY, null);
+    }
+
+    public <T> Mono<T> admit(Mono<T> call) {
+        return admit(call.flux()).singleOrEmpty();
+    }
+
+    /** L'appel n'est souscrit qu'une fois admis ; la latence mesurée est celle du premier élément. */
+    public <T> Flux<T> admit(Flux<T> call) {
+        return Flux.deferContextual(ctx -> {
+            Tenant tenant = ctx.getOrDefault(TENANT_KEY, new Tenant(0, 0));
+            IntConsumer listener = queueListener(ctx);
+            Waiter waiter = new Waiter(tenant, listener);
+            Trace trace = Trace.from(ctx);
+            long enqueuedNanos = System.nanoTime();
+            if (!enqueue(waiter)) {
+                countShed();
+                log.warn("Appel au modèle délesté (serveur {}, {} en file, {} en cours)",
+                        tenant.guildId(), queued(), inFlight());
+                return Flux.error(new OverloadedException());
+            }
+
+            return waiter.permit.asMono()
+                    .timeout(maxWait, Mono.defer(() -> {
+                        countShed();
+                        return Mono.error(new OverloadedException());
+                    }))
+                    .thenMany(Flux.defer(() -> {
+                        waiter.startNanos = System.nanoTime();
+                        trace.queued(waiter.startNanos - enqueuedNanos);
+                        return call;
+                    }))
+                    .doOnNext(v -> sample(waiter, false))
+                    .doOnComplete(() -> sample(waiter, false))
+                    .doOnError(e -> {
+                        if (!(e instanceof OverloadedException)) sample(waiter, true);
+                    })
+                    .doFinally(signal -> finish(waiter));
+        });
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int queued() {
+        return queued;
+    }
+
+    /** Appels délestés depuis le démarrage (file pleine ou attente trop longue). */
+    public synchronized long shed() {
+        return shed;
+    }
+
+    private synchronized void countShed() {
+        shed++;
+    }
+
+    /* ---------- File ---------- */
+
+    private boolean enqueue(Waiter waiter) {
+        List<Waiter> started;
+        synchronized (this) {
+            long guildId = waiter.tenant.guildId();
+            int guildQueued = queuedByGuild.getOrDefault(guildId, 0);
+            boolean mustWait = queued > 0 || inFlight >= (int) limit;
+            if (mustWait && (queued >= maxQueue || guildQueued >= maxQueuePerGuild)) {
+                return false;
+            }
+            guilds.computeIfAbsent(guildId, k -> new LinkedHashMap<>())
+                    .computeIfAbsent(waiter.tenant.userId(), k -> new ArrayDeque<>())
+                    .add(waiter);
+            queuedByGuild.put(guildId, guildQueued + 1);
+            queued++;
+            if (waiter.listener != null) listening++;
+            started = dispatch();
+        }
+        started.forEach(w -> w.permit.tryEmitEmpty());
+        notifyPositions();
+        return true;
+    }
+
+    private void finish(Waiter waiter) {
+        List<Waiter> started;
+        synchronized (this) {
+            if (waiter.admitted) {
+                inFlight--;
+            } else {
+                remove(waiter);
+            }
+            started = dispatch();
+        }
+        started.forEach(w -> w.permit.tryEmitEmpty());
+        notifyPositions();
+    }
+
+    /** Admet autant d'appels que la limite le permet (appelé sous verrou). */
+    private List<Waiter> dispatch() {
+        List<Waiter> started = new ArrayList<>();
+        while (queued > 0 && inFlight < Math.max(MIN_LIMIT, (int) limit)) {
+            Waiter next = pollNext();
+            next.admitted = true;
+            inFlight++;
+            started.add(next);
+        }
+        return started;
+    }
+
+    /** Tourniquet : premier serveur, premier utilisateur de ce serveur, puis les deux passent en fin de tour. */
+    private Waiter pollNext() {
+        Map.Entry<Long, Map<Long, ArrayDeque<Waiter>>> guild = guilds.entrySet().iterator().next();
+        Map<Long, ArrayDeque<Waiter>> users = guild.getValue();
+        Map.Entry<Long, ArrayDeque<Waiter>> user = users.entrySet().iterator().next();
+        Waiter waiter = user.getValue().poll();
+
+        users.remove(user.getKey());
+        if (!user.getValue().isEmpty()) users.put(user.getKey(), user.getValue());
+        guilds.remove(guild.getKey());
+        if (!users.isEmpty()) guilds.put(guild.getKey(), users);
+
+        release(waiter);
+        return waiter;
+    }
+
+    private void remove(Waiter waiter) {
+        long guildId = waiter.tenant.guildId();
+        Map<Long, ArrayDeque<Waiter>> users = guilds.get(guildId);
+        if (users == null) return;
+        ArrayDeque<Waiter> queue = users.get(waiter.tenant.userId());
+        if (queue == null || !queue.remove(waiter)) return;
+        if (queue.isEmpty()) users.remove(waiter.tenant.userId());
+        if (users.isEmpty()) guilds.remove(guildId);
+        release(waiter);
+    }
+
+    private void release(Waiter waiter) {
+        queued--;
+        if (waiter.listener != null) listening--;
+        queuedByGuild.computeIfPresent(waiter.tenant.guildId(), (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    /* ---------- Limite adaptative ---------- */
+
+    private synchronized void sample(Waiter waiter, boolean failed) {
+        if (waiter.sampled || !waiter.admitted) return;
+        waiter.sampled = true;
+
+        long latency = System.nanoTime() - waiter.startNanos;
+        double before = limit;
+        if (failed || latency > latencyTargetNanos) {
+            limit = Math.max(MIN_LIMIT, limit - limit * (1 - BACKOFF) / capacity);
+        } else if (inFlight >= (int) limit) {
+            // On n'augmente que si la limite est réellement atteinte
+            limit = Math.min(maxLimit, limit + capacity / limit);
+        }
+        if ((int) before != (int) limit) {
+            log.info("Limite d'appels simultanés au modèle : {} → {} (latence {} ms{})",
+                    (int) before, (int) limit, latency / 1_000_000, failed ? ", échec" : "");
+        }
+    }
+
+    /* ---------- Position dans la file ---------- */
+
+    private void notifyPositions() {
+        List<Runnable> notifications = new ArrayList<>();
+        synchronized (this) {
+            if (listening == 0) return;
+            // Taille de la file de chaque serveur, dans l'ordre du tourniquet
+            int[] guildSizes = new int[guilds.size()];
+            int g = 0;
+            for (Long guildId : guilds.keySet()) guildSizes[g++] = queuedByGuild.get(guildId);
+
+            g = 0;
+            for (Map<Long, ArrayDeque<Waiter>> users : guilds.values()) {
+                for (ArrayDeque<Waiter> queue : users.values()) {
+                    int index = 0;
+                    for (Waiter w : queue) {
+                        if (w.listener != null) {
+                            int position = position(guildSizes, g, users, queue, index);
+                            if (w.lastPosition != position) {
+                                w.lastPosition = position;
+                                notifications.add(() -> w.listener.accept(position));
+                            }
+                        }
+                        index++;
+                    }
+                }
+                g++;
+            }
+        }
+        notifications.forEach(Runnable::run);
+    }
+
+    /**
+     * Rang d'admission (1 = prochain) du {@code index}-ième appel de {@code queue}, sans nouvelle arrivée,
+     * calculé sans rejouer le tourniquet (appelé sous verrou).
+     */
+    private static int position(int[] guildSizes, int guild, Map<Long, ArrayDeque<Waiter>> users,
+                                ArrayDeque<Waiter> queue, int index) {
+        // Appels du serveur servis avant : chaque utilisateur passe une fois par tour du serveur
+        int turn = 0;
+        boolean before = true;
+        for (ArrayDeque<Waiter> q : users.values()) {
+            if (q == queue) {
+                before = false;
+                turn += index;
+            } else {
+                turn += Math.min(q.size(), index) + (before && q.size() > index ? 1 : 0);
+            }
+        }
+        // Le tour n° turn du serveur tombe au tour global n° turn : chaque serveur passe une fois par tour
+        int position = 1;
+        for (int h = 0; h < guildSizes.length; h++) {
+            position += Math.min(guildSizes[h], turn) + (h < guild && guildSizes[h] > turn ? 1 : 0);
+        }
+        return position;
+    }
+}
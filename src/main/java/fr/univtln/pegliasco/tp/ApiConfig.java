@@ -2,20 +2,301 @@ package fr.univtln.pegliasco.tp;
 
 import io.github.cdimascio.dotenv.Dotenv;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 public class ApiConfig {
+
+    /** Instance du backend pour les appels au modèle, et son poids dans la répartition. */
+    public record LlmBackend(String baseUrl, int weight) {
+        public String ollamaUrl() { return join(baseUrl, "/ollama"); }
+    }
+
     private final String baseUrl;
 
+    // Instances du backend pour les appels au modèle (par défaut BACKEND_BASE_URL seul)
+    private final List<LlmBackend> llmBackends;
+    private final String llmBalancing;
+    private final String llmHealthPath;
+    private final Duration llmHealthInterval;
+    private final int llmBreakerFailures;
+    private final Duration llmBreakerOpen;
+    private final int llmHedgeMaxChars;
+    private final double llmHedgePercentile;
+
+    // Sharding : nombre total de shards (0 = recommandé par Discord) et plage gérée par ce processus
+    private final int shardCount;
+    private final int shardFrom;
+    private final int shardTo;
+
+    // Cache d'entités Discord4J : "lean" (par défaut) ou "full"
+    private final String discordStoreProfile;
+
+    // Pool de connexions vers le backend
+    private final int maxConnections;
+    private final int pendingAcquireMaxCount;
+    private final Duration pendingAcquireTimeout;
+    private final Duration maxIdleTime;
+    private final Duration maxLifeTime;
+    private final boolean http2;
+
+    // Snapshot /refresh compressé en gzip (le backend doit accepter Content-Encoding: gzip)
+    private final boolean refreshGzip;
+
+    // Synchro continue des guildes (événements membres/rôles)
+    private final boolean guildSyncEnabled;
+    private final Duration guildSyncWindow;
+    private final int guildSyncMaxBatch;
+
+    // Cache des réponses /teach, /translate, /summarize
+    private final long responseCacheMaxChars;
+    private final Duration responseCacheTtl;
+
+    // Admission des appels au modèle
+    private final int llmMaxConcurrency;
+    private final int llmMaxQueue;
+    private final int llmMaxQueuePerGuild;
+    private final Duration llmMaxQueueWait;
+    private final Duration llmLatencyTarget;
+
+    // Documents indexés par salon
+    private final long documentsMaxBytesPerChannel;
+    private final long documentsMaxBytesTotal;
+    private final Duration documentsMaxAge;
+    private final Path documentsDir;
+    private final long documentsSegmentBytes;
+
+    // Téléchargement des pièces jointes
+    private final long attachmentMaxBytes;
+    private final int attachmentMaxConcurrentDownloads;
+
+    // Contexte /qa : nombre de passages et budget en caractères
+    private final int qaTopK;
+    private final int qaContextChars;
+    private final String embeddingsMode;
+
+    // Mémoire des conversations par salon (mentions) : budget en tokens estimés, 0 la désactive
+    private final int chatMemoryTokens;
+    private final int chatMemoryTurns;
+    private final Duration chatMemoryTtl;
+    private final int chatMemoryChannels;
+
+    // Endpoint /metrics (format Prometheus), local par défaut
+    private final String metricsHost;
+    private final int metricsPort;
+
+    // Trace des interactions : écrite au-delà du seuil, ou pour un pourcentage tiré au sort
+    private final Duration traceSlowThreshold;
+    private final double traceSampleRate;
+
     public ApiConfig(Dotenv dotenv) {
         String fromEnv = dotenv.get("BACKEND_BASE_URL");
         this.baseUrl = normalizeBase(fromEnv != null && !fromEnv.isBlank()
                 ? fromEnv
                 : "http://localhost:8080");
+
+        this.llmBackends = llmBackends(dotenv.get("LLM_BACKENDS"), baseUrl);
+        this.llmBalancing = dotenv.get("LLM_BALANCING", "p2c").trim().toLowerCase();
+        this.llmHealthPath = dotenv.get("LLM_HEALTH_PATH", "/").trim();
+        this.llmHealthInterval = Duration.ofSeconds(intOrDefault(dotenv, "LLM_HEALTH_INTERVAL_SECONDS", 10));
+        this.llmBreakerFailures = intOrDefault(dotenv, "LLM_BREAKER_FAILURES", 5);
+        this.llmBreakerOpen = Duration.ofSeconds(intOrDefault(dotenv, "LLM_BREAKER_OPEN_SECONDS", 30));
+        this.llmHedgeMaxChars = intOrDefault(dotenv, "LLM_HEDGE_MAX_CHARS", 0);
+        this.llmHedgePercentile = Math.min(99, Math.max(50, intOrDefault(dotenv, "LLM_HEDGE_PERCENTILE", 95))) / 100.0;
+
+        String count = dotenv.get("SHARD_COUNT", "auto").trim();
+        this.shardCount = count.isEmpty() || count.equalsIgnoreCase("auto") ? 0 : intOrDefault(dotenv, "SHARD_COUNT", 0);
+        int[] range = shardRange(dotenv.get("SHARD_INDICES", "all"));
+        this.shardFrom = range[0];
+        this.shardTo = range[1];
+        if (shardCount > 0 && shardFrom >= shardCount) {
+            throw new IllegalArgumentException("SHARD_INDICES hors de SHARD_COUNT (" + shardCount + ")");
+        }
+
+        this.discordStoreProfile = dotenv.get("DISCORD_STORE_PROFILE", "lean").trim().toLowerCase();
+
+        this.maxConnections = intOrDefault(dotenv, "BACKEND_MAX_CONNECTIONS", 50);
+        this.pendingAcquireMaxCount = intOrDefault(dotenv, "BACKEND_PENDING_ACQUIRE_MAX", 500);
+        this.pendingAcquireTimeout = Duration.ofSeconds(intOrDefault(dotenv, "BACKEND_PENDING_ACQUIRE_TIMEOUT_SECONDS", 10));
+        this.maxIdleTime = Duration.ofSeconds(intOrDefault(dotenv, "BACKEND_MAX_IDLE_SECONDS", 30));
+        this.maxLifeTime = Duration.ofSeconds(intOrDefault(dotenv, "BACKEND_MAX_LIFE_SECONDS", 300));
+        this.http2 = Boolean.parseBoolean(dotenv.get("BACKEND_HTTP2", "false"));
+        this.refreshGzip = Boolean.parseBoolean(dotenv.get("REFRESH_GZIP", "false"));
+        this.guildSyncEnabled = Boolean.parseBoolean(dotenv.get("GUILD_SYNC_ENABLED", "true"));
+        this.guildSyncWindow = Duration.ofMillis(intOrDefault(dotenv, "GUILD_SYNC_WINDOW_MS", 2000));
+        this.guildSyncMaxBatch = intOrDefault(dotenv, "GUILD_SYNC_MAX_BATCH", 500);
+
+        this.responseCacheMaxChars = intOrDefault(dotenv, "RESPONSE_CACHE_MAX_CHARS", 5_000_000);
+        this.responseCacheTtl = Duration.ofMinutes(intOrDefault(dotenv, "RESPONSE_CACHE_TTL_MINUTES", 60));
+
+        this.llmMaxConcurrency = intOrDefault(dotenv, "LLM_MAX_CONCURRENCY", 8);
+        this.llmMaxQueue = intOrDefault(dotenv, "LLM_MAX_QUEUE", 100);
+        this.llmMaxQueuePerGuild = intOrDefault(dotenv, "LLM_MAX_QUEUE_PER_GUILD", 20);
+        this.llmMaxQueueWait = Duration.ofSeconds(intOrDefault(dotenv, "LLM_MAX_QUEUE_WAIT_SECONDS", 60));
+        this.llmLatencyTarget = Duration.ofSeconds(intOrDefault(dotenv, "LLM_LATENCY_TARGET_SECONDS", 20));
+
+        this.documentsMaxBytesPerChannel = intOrDefault(dotenv, "DOCUMENTS_MAX_MB_PER_CHANNEL", 8) * 1024L * 1024L;
+        this.documentsMaxBytesTotal = intOrDefault(dotenv, "DOCUMENTS_MAX_MB_TOTAL", 256) * 1024L * 1024L;
+        this.documentsMaxAge = Duration.ofHours(intOrDefault(dotenv, "DOCUMENTS_MAX_AGE_HOURS", 72));
+        // Un répertoire par plage de shards : plusieurs processus peuvent tourner côte à côte
+        String defaultDir = shardTo == Integer.MAX_VALUE
+                ? "data/documents"
+                : "data/documents/shards-" + shardFrom + "-" + shardTo;
+        String dir = dotenv.get("DOCUMENTS_DIR", defaultDir).trim();
+        this.documentsDir = dir.isEmpty() || dir.equalsIgnoreCase("off") ? null : Path.of(dir);
+        this.documentsSegmentBytes = intOrDefault(dotenv, "DOCUMENTS_SEGMENT_MB", 64) * 1024L * 1024L;
+
+        // Par défaut, rien de plus gros que ce qu'un salon peut stocker
+        this.attachmentMaxBytes = intOrDefault(dotenv, "ATTACHMENT_MAX_MB",
+                (int) (documentsMaxBytesPerChannel / (1024 * 1024))) * 1024L * 1024L;
+        this.attachmentMaxConcurrentDownloads = intOrDefault(dotenv, "ATTACHMENT_MAX_CONCURRENT_DOWNLOADS", 4);
+
+        this.qaTopK = intOrDefault(dotenv, "QA_TOP_K", 8);
+        this.qaContextChars = intOrDefault(dotenv, "QA_CONTEXT_CHARS", 6000);
+        this.embeddingsMode = dotenv.get("EMBEDDINGS_MODE", "backend").trim().toLowerCase();
+
+        this.chatMemoryTokens = intOrDefault(dotenv, "CHAT_MEMORY_TOKENS", 3000);
+        this.chatMemoryTurns = intOrDefault(dotenv, "CHAT_MEMORY_TURNS", 12);
+        this.chatMemoryTtl = Duration.ofMinutes(intOrDefault(dotenv, "CHAT_MEMORY_TTL_MINUTES", 30));
+        this.chatMemoryChannels = intOrDefault(dotenv, "CHAT_MEMORY_CHANNELS", 1000);
+
+        this.metricsHost = dotenv.get("METRICS_HOST", "127.0.0.1").trim();
+        this.metricsPort = intOrDefault(dotenv, "METRICS_PORT", 9464);
+
+        this.traceSlowThreshold = Duration.ofMillis(intOrDefault(dotenv, "TRACE_SLOW_MS", 30_000));
+        this.traceSampleRate = Math.min(100, Math.max(0, intOrDefault(dotenv, "TRACE_SAMPLE_PERCENT", 1))) / 100.0;
     }
 
     public String baseUrl() { return baseUrl; }
 
+    public List<LlmBackend> llmBackends() { return llmBackends; }
+
+    /** Somme des poids des instances : capacité du backend, en unités de {@link #llmMaxConcurrency()}. */
+    public int llmCapacity() { return llmBackends.stream().mapToInt(LlmBackend::weight).sum(); }
+
+    /** "p2c" (deux au hasard, le moins chargé ; par défaut) ou "least" (le moins chargé de tous). */
+    public String llmBalancing() { return llmBalancing; }
+
+    /** Chemin du contrôle actif (GET) ; toute réponse sous 500 compte comme disponible. */
+    public String llmHealthPath() { return llmHealthPath; }
+
+    /** Période du contrôle actif des instances ; 0 le désactive (comme une instance seule). */
+    public Duration llmHealthInterval() { return llmHealthInterval; }
+
+    /** Échecs consécutifs avant d'écarter une instance ; 0 : jamais (ni avec une instance seule). */
+    public int llmBreakerFailures() { return llmBreakerFailures; }
+
+    /** Durée pendant laquelle une instance écartée ne reçoit plus d'appels avant d'être réessayée. */
+    public Duration llmBreakerOpen() { return llmBreakerOpen; }
+
+    /** Prompts jusqu'à cette taille doublés sur une autre instance s'ils tardent ; 0 : jamais. */
+    public int llmHedgeMaxChars() { return llmHedgeMaxChars; }
+
+    /** Quantile de latence de l'instance au-delà duquel le prompt est doublé (0.5 à 0.99). */
+    public double llmHedgePercentile() { return llmHedgePercentile; }
+
+    /** Nombre total de shards du bot ; 0 : nombre recommandé par Discord. */
+    public int shardCount() { return shardCount; }
+
+    /** Premier shard géré par ce processus. */
+    public int shardFrom() { return shardFrom; }
+
+    /** Dernier shard géré par ce processus (inclus) ; {@link Integer#MAX_VALUE} : jusqu'au dernier. */
+    public int shardTo() { return shardTo; }
+
+    public String discordStoreProfile() { return discordStoreProfile; }
+
+    public int maxConnections() { return maxConnections; }
+
+    public int pendingAcquireMaxCount() { return pendingAcquireMaxCount; }
+
+    public Duration pendingAcquireTimeout() { return pendingAcquireTimeout; }
+
+    public Duration maxIdleTime() { return maxIdleTime; }
+
+    public Duration maxLifeTime() { return maxLifeTime; }
+
+    /** h2c vers le backend (upgrade depuis HTTP/1.1). */
+    public boolean http2() { return http2; }
+
+    public boolean refreshGzip() { return refreshGzip; }
+
+    public boolean guildSyncEnabled() { return guildSyncEnabled; }
+
+    /** Durée maximale d'accumulation d'un micro-lot de changements. */
+    public Duration guildSyncWindow() { return guildSyncWindow; }
+
+    public int guildSyncMaxBatch() { return guildSyncMaxBatch; }
+
+    public long responseCacheMaxChars() { return responseCacheMaxChars; }
+
+    public Duration responseCacheTtl() { return responseCacheTtl; }
+
+    /** Plafond de la limite adaptative d'appels simultanés au modèle, par unité de poids des instances. */
+    public int llmMaxConcurrency() { return llmMaxConcurrency; }
+
+    public int llmMaxQueue() { return llmMaxQueue; }
+
+    public int llmMaxQueuePerGuild() { return llmMaxQueuePerGuild; }
+
+    public Duration llmMaxQueueWait() { return llmMaxQueueWait; }
+
+    /** Latence (premier token) au-delà de laquelle la limite d'appels simultanés diminue. */
+    public Duration llmLatencyTarget() { return llmLatencyTarget; }
+
+    public long documentsMaxBytesPerChannel() { return documentsMaxBytesPerChannel; }
+
+    public long documentsMaxBytesTotal() { return documentsMaxBytesTotal; }
+
+    public Duration documentsMaxAge() { return documentsMaxAge; }
+
+    /**
+     * Répertoire des segments de documents ; null si la persistance est désactivée ("off").
+     * Par défaut {@code data/documents}, ou {@code data/documents/shards-<de>-<à>} avec SHARD_INDICES.
+     */
+    public Path documentsDir() { return documentsDir; }
+
+    public long documentsSegmentBytes() { return documentsSegmentBytes; }
+
+    public long attachmentMaxBytes() { return attachmentMaxBytes; }
+
+    public int attachmentMaxConcurrentDownloads() { return attachmentMaxConcurrentDownloads; }
+
+    public int qaTopK() { return qaTopK; }
+
+    public int qaContextChars() { return qaContextChars; }
+
+    /** Budget d'une conversation (résumé et derniers échanges, ~4 caractères par token) ; 0 : pas de mémoire. */
+    public int chatMemoryTokens() { return chatMemoryTokens; }
+
+    /** Nombre d'échanges gardés tels quels avant d'en résumer les plus anciens. */
+    public int chatMemoryTurns() { return chatMemoryTurns; }
+
+    /** Inactivité au-delà de laquelle la conversation d'un salon est oubliée. */
+    public Duration chatMemoryTtl() { return chatMemoryTtl; }
+
+    public int chatMemoryChannels() { return chatMemoryChannels; }
+
+    public String metricsHost() { return metricsHost; }
+
+    /** Port de l'endpoint /metrics ; 0 le désactive. */
+    public int metricsPort() { return metricsPort; }
+
+    /** Au-delà de cette durée totale, la trace d'une interaction est toujours écrite. */
+    public Duration traceSlowThreshold() { return traceSlowThreshold; }
+
+    /** Fraction des autres interactions dont la trace est écrite (0 à 1). */
+    public double traceSampleRate() { return traceSampleRate; }
+
     public String ollamaUrl() { return join(baseUrl, "/ollama"); }
 
+    public String embeddingsUrl() { return join(baseUrl, "/ollama/embed"); }
+
+    /** "backend" (par défaut), "local" (hachage, sans réseau) ou "off". */
+    public String embeddingsMode() { return embeddingsMode; }
+
     public String roleCreateUrl(long discordId) {
         return baseUrl + "/guilds/discord/" + discordId + "/roles";
     }
@@ -24,6 +305,59 @@ public class ApiConfig {
         return baseUrl + "/guilds/discord/" + discordId + "/refresh";
     }
 
+    /** Refresh incrémental : entités ajoutées/modifiées et identifiants retirés depuis le dernier envoi. */
+    public String refreshDeltaUrl(long discordId) {
+        return baseUrl + "/guilds/discord/" + discordId + "/refresh/delta";
+    }
+
+    static int intOrDefault(Dotenv dotenv, String key, int defaultValue) {
+        String value = dotenv.get(key);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /** "all", "3" ou "0-3" (bornes incluses). */
+    static int[] shardRange(String value) {
+        String range = value == null ? "" : value.trim();
+        if (range.isEmpty() || range.equalsIgnoreCase("all")) return new int[] {0, Integer.MAX_VALUE};
+        try {
+            int dash = range.indexOf('-');
+            int from = Integer.parseInt((dash < 0 ? range : range.substring(0, dash)).trim());
+            int to = dash < 0 ? from : Integer.parseInt(range.substring(dash + 1).trim());
+            if (from < 0 || to < from) throw new IllegalArgumentException("SHARD_INDICES invalide : " + value);
+            return new int[] {from, to};
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("SHARD_INDICES invalide : " + value, e);
+        }
+    }
+
+    /** "http://gpu1:8080 weight=3, http://gpu2:8080" (poids 1 par défaut) ; vide : {@code defaultBase} seul. */
+    static List<LlmBackend> llmBackends(String value, String defaultBase) {
+        List<LlmBackend> backends = new ArrayList<>();
+        if (value != null) {
+            for (String entry : value.split(",")) {
+                String[] parts = entry.trim().split("\\s+");
+                if (parts[0].isEmpty()) continue;
+                int weight = 1;
+                try {
+                    for (int i = 1; i < parts.length; i++) {
+                        if (!parts[i].startsWith("weight=")) throw new NumberFormatException(parts[i]);
+                        weight = Integer.parseInt(parts[i].substring("weight=".length()));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("LLM_BACKENDS invalide : " + entry.trim(), e);
+                }
+                if (weight <= 0) throw new IllegalArgumentException("LLM_BACKENDS invalide : " + entry.trim());
+                backends.add(new LlmBackend(normalizeBase(parts[0]), weight));
+            }
+        }
+        return backends.isEmpty() ? List.of(new LlmBackend(defaultBase, 1)) : List.copyOf(backends);
+    }
+
     private static String normalizeBase(String url) {
         return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
     }
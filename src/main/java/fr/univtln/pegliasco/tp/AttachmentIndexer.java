@@ -0,0 +1,274 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.object.entity.Attachment;
+import discord4j.core.object.entity.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.http.client.HttpClient;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexation des pièces jointes texte d'un message dans le {@link DocumentStore}.
+ * <ul>
+ *     <li>corps lu en flux ({@code ByteBuf} par {@code ByteBuf}) et décodé au fil de l'eau :
+ *     rien n'est bufferisé au-delà de la taille maximale, le téléchargement est interrompu dès qu'elle est dépassée ;</li>
+ *     <li>jeu de caractères détecté par le BOM, puis le paramètre {@code charset} du type de contenu (UTF-8 sinon) ;</li>
+ *     <li>nombre global de téléchargements simultanés borné, les suivants attendent leur tour ;
+ *     un téléchargement ne garde pas sa place plus de {@code DOWNLOAD_TIMEOUT} ;</li>
+ *     <li>téléchargements concurrents d'une même URL partagés.</li>
+ * </ul>
+ */
+public final class AttachmentIndexer {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentIndexer.class);
+
+    private static final int DECODE_BUFFER_CHARS = 8192;
+    private static final Duration DOWNLOAD_TIMEOUT = Duration.ofMinutes(2);
+
+    /** Téléchargement interrompu : la pièce jointe dépasse la taille maximale. */
+    private static final class TooLargeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(long limit) {
+            super("plus de " + limit + " octets");
+        }
+    }
+
+    private record Download(String url, String filename, String contentType, Sinks.One<String> result) {}
+
+    private final HttpClient http;
+    private final DocumentStore documents;
+    private final long maxBytes;
+
+    private final Sinks.Many<Download> queue = Sinks.many().unicast().onBackpressureBuffer();
+    private final Map<String, Mono<String>> inFlight = new ConcurrentHashMap<>();
+
+    public AttachmentIndexer(HttpClient http, DocumentStore documents, long maxBytes, int maxConcurrentDownloads) {
+        this.http = http;
+        this.documents = documents;
+        this.maxBytes = maxBytes;
+
+        // Une seule file pour tout le bot : la concurrence est bornée globalement, pas par message
+        queue.asFlux()
+                .flatMap(d -> fetch(d.url(), d.filename(), d.contentType())
+                        .doOnNext(d.result()::tryEmitValue)
+                        .doOnError(d.result()::tryEmitError)
+                        .doOnSuccess(text -> {
+                            if (text == null) d.result().tryEmitEmpty();
+                        })
+                        .onErrorResume(e -> Mono.empty()), maxConcurrentDownloads)
+                .subscribe();
+    }
+
+    /** Télécharge et indexe les pièces jointes texte du message (erreurs journalisées, jamais propagées). */
+    public Mono<Void> index(Message message) {
+        long channelId = message.getChannelId().asLong();
+        return Flux.fromIterable(message.getAttachments())
+                .flatMap(att -> index(channelId, att))
+                .then();
+    }
+
+    private Mono<Void> index(long channelId, Attachment att) {
+        String filename = att.getFilename();
+        String contentType = att.getContentType().orElse("");
+
+        if (!contentType.isEmpty() && !contentType.startsWith("text/")) {
+            log.info("Pièce jointe ignorée (type non texte) : {} ({})", filename, contentType);
+            return Mono.empty();
+        }
+        if (att.getSize() > maxBytes) {
+            log.info("Pièce jointe ignorée (trop volumineuse) : {} ({} octets, max {})",
+                    filename, att.getSize(), maxBytes);
+            return Mono.empty();
+        }
+
+        log.info("Pièce jointe texte reçue dans le salon {} : {} ({})", channelId, filename, contentType);
+
+        return download(att.getUrl(), filename, contentType)
+                .doOnNext(text -> documents.add(channelId, filename, text)
+                        .ifPresent(doc -> log.info("Texte indexé depuis {} pour le salon {} ({} octets)",
+                                filename, channelId, doc.bytes())))
+                .onErrorResume(e -> {
+                    if (e instanceof TooLargeException) {
+                        log.warn("Téléchargement de {} interrompu : {}", filename, e.getMessage());
+                    } else {
+                        log.error("Erreur téléchargement pièce jointe {} : {}", filename, e.getMessage(), e);
+                    }
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /** Rejoint le téléchargement en cours de la même URL, ou en met un nouveau en file. */
+    private Mono<String> download(String url, String filename, String contentType) {
+        return Mono.defer(() -> inFlight.computeIfAbsent(url, u -> {
+            Sinks.One<String> result = Sinks.one();
+            Sinks.EmitResult emitted;
+            synchronized (queue) {
+                emitted = queue.tryEmitNext(new Download(u, filename, contentType, result));
+            }
+            if (emitted.isFailure()) {
+                result.tryEmitError(new IllegalStateException("file de téléchargement indisponible (" + emitted + ")"));
+            }
+            return result.asMono()
+                    .doFinally(signal -> inFlight.remove(u))
+                    .cache();
+        }));
+    }
+
+    private Mono<String> fetch(String url, String filename, String declaredType) {
+        return http.get()
+                .uri(url)
+                .response((res, body) -> {
+                    int code = res.status().code();
+                    if (code < 200 || code >= 300) {
+                        log.warn("Échec téléchargement fichier {} : HTTP {}", filename, code);
+                        return Mono.empty();
+                    }
+                    String length = res.responseHeaders().get(HttpHeaderNames.CONTENT_LENGTH);
+                    if (length != null && parseLong(length) > maxBytes) {
+                        return Mono.error(new TooLargeException(maxBytes));
+                    }
+
+                    String headerType = res.responseHeaders().get(HttpHeaderNames.CONTENT_TYPE);
+                    IncrementalDecoder decoder = new IncrementalDecoder(
+                            charsetOf(headerType != null ? headerType : declaredType), maxBytes);
+                    // Chaque ByteBuf est décodé puis libéré par reactor-netty : seul le texte est conservé
+                    return body.doOnNext(decoder::feed)
+                            .then(Mono.fromSupplier(decoder::finish));
+                })
+                .next()
+                .timeout(DOWNLOAD_TIMEOUT);
+    }
+
+    /** Paramètre {@code charset} d'un type de contenu, UTF-8 s'il est absent ou inconnu. */
+    static Charset charsetOf(String contentType) {
+        if (contentType == null) return StandardCharsets.UTF_8;
+        for (String param : contentType.split(";")) {
+            String p = param.trim();
+            if (!p.toLowerCase(Locale.ROOT).startsWith("charset=")) continue;
+            String name = p.substring("charset=".length()).replace("\"", "").trim();
+            try {
+                return Charset.forName(name);
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                log.debug("Jeu de caractères inconnu : {}", name);
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Décodage incrémental : les séquences multi-octets coupées entre deux morceaux sont
+     * reportées sur le suivant, le BOM éventuel choisit le jeu de caractères.
+     */
+    private static final class IncrementalDecoder {
+        private final Charset declared;
+        private final long maxBytes;
+        private final StringBuilder text = new StringBuilder();
+        private final CharBuffer chars = CharBuffer.allocate(DECODE_BUFFER_CHARS);
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+        private CharsetDecoder decoder;
+        private long received;
+
+        IncrementalDecoder(Charset declared, long maxBytes) {
+            this.declared = declared;
+            this.maxBytes = maxBytes;
+        }
+
+        void feed(ByteBuf buf) {
+            received += buf.readableBytes();
+            if (received > maxBytes) throw new TooLargeException(maxBytes);
+
+            ByteBuffer in = buf.nioBuffer();
+            if (pending.hasRemaining()) {
+                ByteBuffer joined = ByteBuffer.allocate(pending.remaining() + in.remaining());
+                joined.put(pending).put(in).flip();
+                in = joined;
+            }
+            if (decoder == null) {
+                if (in.remaining() < 3) {
+                    pending = copyOf(in);
+                    return;
+                }
+                decoder = newDecoder(in);
+            }
+            decode(in, false);
+            pending = copyOf(in);
+        }
+
+        String finish() {
+            ByteBuffer in = pending;
+            if (decoder == null) decoder = newDecoder(in);
+            decode(in, true);
+            decoder.flush(chars);
+            drain();
+            return text.toString();
+        }
+
+        private void decode(ByteBuffer in, boolean endOfInput) {
+            while (true) {
+                CoderResult result = decoder.decode(in, chars, endOfInput);
+                drain();
+                if (!result.isOverflow()) return;
+            }
+        }
+
+        private void drain() {
+            chars.flip();
+            text.append(chars);
+            chars.clear();
+        }
+
+        /** Consomme le BOM s'il y en a un et crée le décodeur correspondant. */
+        private CharsetDecoder newDecoder(ByteBuffer in) {
+            Charset charset = declared;
+            int p = in.position();
+            int n = in.remaining();
+            if (n >= 3 && (in.get(p) & 0xFF) == 0xEF && (in.get(p + 1) & 0xFF) == 0xBB && (in.get(p + 2) & 0xFF) == 0xBF) {
+                charset = StandardCharsets.UTF_8;
+                in.position(p + 3);
+            } else if (n >= 2 && (in.get(p) & 0xFF) == 0xFE && (in.get(p + 1) & 0xFF) == 0xFF) {
+                charset = StandardCharsets.UTF_16BE;
+                in.position(p + 2);
+            } else if (n >= 2 && (in.get(p) & 0xFF) == 0xFF && (in.get(p + 1) & 0xFF) == 0xFE) {
+                charset = StandardCharsets.UTF_16LE;
+                in.position(p + 2);
+            }
+            return charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        private static ByteBuffer copyOf(ByteBuffer in) {
+            ByteBuffer copy = ByteBuffer.allocate(in.remaining());
+            copy.put(in).flip();
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package fr.univtln.pegliasco.tp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import reactor.core.publisher.Mono;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.http.client.HttpClient;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Embeddings calculés par le backend ({@link ApiConfig#embeddingsUrl()}),
+ * au format Ollama : {@code {"input": [...]}} → {@code {"embeddings": [[...], ...]}}.
+ */
+public class BackendEmbeddingClient implements EmbeddingClient {
+
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(60);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient client;
+    private final String url;
+
+    public BackendEmbeddingClient(String url, HttpClient http) {
+        this.url = url;
+        this.client = http
+                .responseTimeout(RESPONSE_TIMEOUT)
+                .headers(h -> {
+                    h.set("Content-Type", "application/json; charset=utf-8");
+                    h.set("Accept", "application/json");
+                });
+    }
+
+    @Override
+    public String model() {
+        return url;
+    }
+
+    @Override
+    public Mono<List<float[]>> embed(List<String> texts) {
+        ObjectNode root = mapper.createObjectNode();
+        ArrayNode input = root.putArray("input");
+        texts.forEach(input::add);
+
+        return client.post()
+                .uri(url)
+                .send(ByteBufFlux.fromString(Mono.just(root.toString())))
+                .responseSingle((res, content) -> content.asByteArray().defaultIfEmpty(new byte[0]).flatMap(body -> {
+                    int code = res.status().code();
+                    if (code < 200 || code >= 300) {
+                        return Mono.error(new IllegalStateException("Embeddings : HTTP " + code));
+                    }
+                    return Mono.fromCallable(() -> parse(body, texts.size()));
+                }));
+    }
+
+    private List<float[]> parse(byte[] body, int expected) throws IOException {
+        JsonNode json = mapper.readTree(body);
+        JsonNode arrays = json.path("embeddings");
+        if (arrays.isMissingNode() && json.has("embedding")) {
+            arrays = mapper.createArrayNode().add(json.get("embedding"));
+        }
+        if (!arrays.isArray() || arrays.size() != expected) {
+            throw new IllegalStateException("Embeddings : " + arrays.size() + " vecteurs reçus pour " + expected + " textes");
+        }
+        List<float[]> vectors = new ArrayList<>(expected);
+        for (JsonNode array : arrays) {
+            float[] v = new float[array.size()];
+            for (int i = 0; i < v.length; i++) v[i] = (float) array.get(i).asDouble();
+            vectors.add(v);
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,131 @@
+package fr.univtln.pegliasco.tp;
+
+import io.netty.channel.ChannelOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Clients HTTP partagés par tout le bot. Chaque appel réutilise les connexions
+ * d'un pool nommé au lieu de refaire un {@code HttpClient.create()} (TCP/TLS) :
+ * <ul>
+ *     <li>{@link #backend()} : backend ({@link ApiConfig#baseUrl()} et instances {@code LLM_BACKENDS}),
+ *     pool borné et configurable, par adresse ;</li>
+ *     <li>{@link #health()} : contrôles actifs des instances du backend, pool à part pour ne pas attendre
+ *     derrière les appels au modèle quand le pool principal est saturé ;</li>
+ *     <li>{@link #attachments()} : téléchargement des pièces jointes Discord (CDN), abandonné si le serveur
+ *     reste muet plus de {@code ATTACHMENT_READ_TIMEOUT}.</li>
+ * </ul>
+ */
+public final class BackendHttp {
+
+    private static final Logger log = LoggerFactory.getLogger(BackendHttp.class);
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration EVICTION_INTERVAL = Duration.ofSeconds(30);
+    private static final Duration ATTACHMENT_READ_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ConnectionProvider backendPool;
+    private final ConnectionProvider attachmentPool;
+    private final ConnectionProvider healthPool;
+    private final HttpClient backend;
+    private final HttpClient health;
+    private final HttpClient attachments;
+
+    /** Métriques exposées par reactor-netty, par pool et adresse distante ("backend@host:port"). */
+    private final Map<String, ConnectionPoolMetrics> poolMetrics = new ConcurrentHashMap<>();
+
+    public BackendHttp(ApiConfig api) {
+        this.backendPool = ConnectionProvider.builder("backend")
+                .maxConnections(api.maxConnections())
+                .pendingAcquireMaxCount(api.pendingAcquireMaxCount())
+                .pendingAcquireTimeout(api.pendingAcquireTimeout())
+                .maxIdleTime(api.maxIdleTime())
+                .maxLifeTime(api.maxLifeTime())
+                .evictInBackground(EVICTION_INTERVAL)
+                .lifo()
+                .metrics(true, () -> new Registrar())
+                .build();
+
+        this.attachmentPool = ConnectionProvider.builder("attachments")
+                .maxConnections(16)
+                .pendingAcquireMaxCount(256)
+                .maxIdleTime(Duration.ofSeconds(20))
+                .evictInBackground(EVICTION_INTERVAL)
+                .metrics(true, () -> new Registrar())
+                .build();
+
+        this.healthPool = ConnectionProvider.builder("health")
+                .maxConnections(4)
+                .pendingAcquireMaxCount(64)
+                .pendingAcquireTimeout(CONNECT_TIMEOUT)
+                .maxIdleTime(Duration.ofSeconds(60))
+                .evictInBackground(EVICTION_INTERVAL)
+                .build();
+
+        HttpClient backendClient = HttpClient.create(backendPool)
+                .keepAlive(true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) CONNECT_TIMEOUT.toMillis())
+                .option(ChannelOption.TCP_NODELAY, true);
+        if (api.http2()) {
+            backendClient = backendClient.protocol(HttpProtocol.H2C, HttpProtocol.HTTP11);
+        }
+        this.backend = backendClient;
+
+        this.health = HttpClient.create(healthPool)
+                .keepAlive(true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) CONNECT_TIMEOUT.toMillis());
+
+        this.attachments = HttpClient.create(attachmentPool)
+                .keepAlive(true)
+                .followRedirect(true)
+                .responseTimeout(ATTACHMENT_READ_TIMEOUT)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) CONNECT_TIMEOUT.toMillis());
+
+        log.info("Pool backend : {} connexions max, {} acquisitions en attente max, http2={}",
+                api.maxConnections(), api.pendingAcquireMaxCount(), api.http2());
+    }
+
+    public HttpClient backend() {
+        return backend;
+    }
+
+    public HttpClient health() {
+        return health;
+    }
+
+    public HttpClient attachments() {
+        return attachments;
+    }
+
+    public Map<String, ConnectionPoolMetrics> poolMetrics() {
+        return Collections.unmodifiableMap(poolMetrics);
+    }
+
+    public void dispose() {
+        backendPool.dispose();
+        attachmentPool.dispose();
+        healthPool.dispose();
+    }
+
+    private final class Registrar implements ConnectionProvider.MeterRegistrar {
+        @Override
+        public void registerMetrics(String poolName, String id, SocketAddress remoteAddress, ConnectionPoolMetrics metrics) {
+            poolMetrics.put(poolName + "@" + remoteAddress, metrics);
+        }
+
+        @Override
+        public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+            poolMetrics.remove(poolName + "@" + remoteAddress);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package fr.univtln.pegliasco.tp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Index inversé BM25 des passages d'un salon.
+ * Les passages d'un document sont contigus ; un retrait les marque comme supprimés
+ * et l'index est reconstruit quand les passages morts deviennent majoritaires.
+ * Non thread-safe : l'appelant synchronise.
+ */
+final class Bm25Index {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private record Scored(int id, double score) {}
+
+    /** Liste de postings : identifiants de passage croissants et fréquences associées. */
+    private static final class Postings {
+        int[] ids = new int[4];
+        int[] tfs = new int[4];
+        int size;
+
+        void add(int id, int tf) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                tfs = Arrays.copyOf(tfs, size * 2);
+            }
+            ids[size] = id;
+            tfs[size] = tf;
+            size++;
+        }
+    }
+
+    private final List<Passage> passages = new ArrayList<>();
+    private int[] lengths = new int[64];
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<Long, int[]> documentRanges = new HashMap<>();
+    private int live;
+    private long totalLength;
+
+    void add(long documentId, String documentName, List<String> chunks) {
+        int first = passages.size();
+        for (String chunk : chunks) {
+            index(new Passage(documentId, documentName, chunk), TextAnalyzer.terms(chunk));
+        }
+        documentRanges.put(documentId, new int[]{first, passages.size()});
+    }
+
+    void remove(long documentId) {
+        int[] range = documentRanges.remove(documentId);
+        if (range == null) return;
+        for (int id = range[0]; id < range[1]; id++) {
+            if (passages.get(id) == null) continue;
+            passages.set(id, null);
+            live--;
+            totalLength -= lengths[id];
+        }
+        if (live < passages.size() / 2) {
+            compact();
+        }
+    }
+
+    boolean isEmpty() {
+        return live == 0;
+    }
+
+    /** Les {@code k} meilleurs passages pour la requête, par score décroissant. */
+    List<Passage> search(String query, int k) {
+        if (live == 0) return List.of();
+
+        Map<String, Integer> queryTerms = new HashMap<>();
+        for (String term : TextAnalyzer.terms(query)) queryTerms.merge(term, 1, Integer::sum);
+
+        double avgLength = Math.max(1.0, (double) totalLength / live);
+        Map<Integer, Double> scores = new HashMap<>();
+        for (Map.Entry<String, Integer> q : queryTerms.entrySet()) {
+            Postings p = postings.get(q.getKey());
+            if (p == null) continue;
+
+            int df = 0;
+            for (int i = 0; i < p.size; i++) {
+                if (passages.get(p.ids[i]) != null) df++;
+            }
+            if (df == 0) continue;
+
+            double idf = Math.log(1.0 + (live - df + 0.5) / (df + 0.5));
+            for (int i = 0; i < p.size; i++) {
+                int id = p.ids[i];
+                if (passages.get(id) == null) continue;
+                double tf = p.tfs[i];
+                double norm = tf * (K1 + 1) / (tf + K1 * (1 - B + B * lengths[id] / avgLength));
+                scores.merge(id, q.getValue() * idf * norm, Double::sum);
+            }
+        }
+
+        PriorityQueue<Scored> top = new PriorityQueue<>((a, b) -> Double.compare(a.score(), b.score()));
+        scores.forEach((id, score) -> {
+            top.add(new Scored(id, score));
+            if (top.size() > k) top.poll();
+        });
+
+        List<Passage> result = new ArrayList<>(top.size());
+        while (!top.isEmpty()) result.add(passages.get(top.poll().id()));
+        Collections.reverse(result);
+        return result;
+    }
+
+    /** Passages vivants dans l'ordre d'indexation (repli quand aucun terme ne correspond). */
+    List<Passage> firstPassages(int k) {
+        List<Passage> result = new ArrayList<>(k);
+        for (Passage p : passages) {
+            if (p == null) continue;
+            result.add(p);
+            if (result.size() == k) break;
+        }
+        return result;
+    }
+
+    private void index(Passage passage, List<String> terms) {
+        int id = passages.size();
+        passages.add(passage);
+        if (id == lengths.length) lengths = Arrays.copyOf(lengths, id * 2);
+        lengths[id] = terms.size();
+        totalLength += terms.size();
+        live++;
+
+        Map<String, Integer> tf = new HashMap<>();
+        for (String term : terms) tf.merge(term, 1, Integer::sum);
+        tf.forEach((term, count) -> postings.computeIfAbsent(term, t -> new Postings()).add(id, count));
+    }
+
+    private void compact() {
+        List<Passage> alive = new ArrayList<>(live);
+        for (Passage p : passages) {
+            if (p != null) alive.add(p);
+        }
+        passages.clear();
+        postings.clear();
+        documentRanges.clear();
+        lengths = new int[Math.max(64, alive.size())];
+        live = 0;
+        totalLength = 0;
+
+        int i = 0;
+        while (i < alive.size()) {
+            long documentId = alive.get(i).documentId();
+            int first = passages.size();
+            while (i < alive.size() && alive.get(i).documentId() == documentId) {
+                Passage p = alive.get(i++);
+                index(p, TextAnalyzer.terms(p.text()));
+            }
+            documentRanges.put(documentId, new int[]{first, passages.size()});
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.core.object.command.ApplicationCommandInteractionOption;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+
+/**
+ * Une commande slash : sa définition Discord et le traitement d'une interaction.
+ * Les handlers sont enregistrés dans le {@link CommandRegistry}, qui route chaque
+ * interaction vers un seul d'entre eux.
+ */
+public interface CommandHandler {
+
+    /** Définition déclarée à Discord (nom, description, options). */
+    ApplicationCommandRequest definition();
+
+    Mono<Void> handle(ChatInputInteractionEvent evt);
+
+    default String name() {
+        return definition().name();
+    }
+
+    /** Sous-commande traitée, ou null si le handler prend la commande entière. */
+    default String subcommand() {
+        return null;
+    }
+
+    /**
+     * Nombre d'interactions traitées en parallèle ; au-delà, elles sont refusées. Réservé aux commandes
+     * sans file derrière elles : les appels au modèle passent déjà par la file équitable
+     * de l'{@link AdmissionController}, qui fait seule le délestage.
+     */
+    default int maxConcurrency() {
+        return Integer.MAX_VALUE;
+    }
+
+    /** Valeur texte (trimée) d'une option, ou "" si absente. */
+    static String stringOption(ChatInputInteractionEvent evt, String name) {
+        return evt.getOption(name)
+                .flatMap(ApplicationCommandInteractionOption::getValue)
+                .map(v -> v.asString().trim())
+                .orElse("");
+    }
+
+    /** Valeur texte (trimée) d'une option de sous-commande, ou "" si absente. */
+    static String stringOption(Optional<ApplicationCommandInteractionOption> parent, String name) {
+        return parent
+                .flatMap(o -> o.getOption(name))
+                .flatMap(ApplicationCommandInteractionOption::getValue)
+                .map(v -> v.asString().trim())
+                .orElse("");
+    }
+}
@@ -0,0 +1,142 @@
+package fr.univtln.pegliasco.tp;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Instruments d'une commande slash (ou des mentions), créés une fois à l'enregistrement.
+ * Chaque interaction mesurée reçoit une {@link Trace} dans son contexte Reactor : le client du modèle
+ * et {@link StreamingReply} y enregistrent leurs étapes, qui alimentent à la fois ces histogrammes
+ * et la trace de l'interaction.
+ */
+public final class CommandMetrics {
+
+    /** Étapes mesurées d'une interaction. */
+    public enum Stage {
+        DEFER("defer"),
+        BACKEND("backend"),
+        // Lecture du JSON du modèle, comprise dans BACKEND
+        DECODE("decode"),
+        SPLIT("split"),
+        FOLLOWUP("followup");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    /** Hors interaction (ou sans registre) : les mesures ne sont exportées nulle part. */
+    static final CommandMetrics NONE = new CommandMetrics(new Metrics(), "none", Trace.Policy.OFF);
+
+    private final String command;
+    private final Trace.Policy policy;
+    private final Metrics.Histogram duration;
+    private final Metrics.Histogram[] stages = new Metrics.Histogram[Stage.values().length];
+    private final Metrics.Counter errors;
+    private final Metrics.Counter rejected;
+    private final Metrics.Counter backendErrors;
+    private final Metrics.Counter backendTimeouts;
+
+    public CommandMetrics(Metrics metrics, String command, Trace.Policy policy) {
+        this.command = command;
+        this.policy = policy;
+        this.duration = metrics.histogram("bot_command_duration_seconds",
+                "Durée totale d'une interaction, de la réception à la dernière réponse.", "command", command);
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = metrics.histogram("bot_stage_duration_seconds",
+                    "Durée d'une étape d'une interaction.", "command", command, "stage", stage.label);
+        }
+        this.errors = metrics.counter("bot_command_errors_total",
+                "Interactions terminées sur une erreur non gérée.", "command", command);
+        this.rejected = metrics.counter("bot_command_rejected_total",
+                "Interactions refusées (trop d'exécutions simultanées).", "command", command);
+        this.backendErrors = metrics.counter("bot_backend_errors_total",
+                "Appels au modèle en échec (hors timeout).", "command", command);
+        this.backendTimeouts = metrics.counter("bot_backend_timeouts_total",
+                "Appels au modèle expirés.", "command", command);
+    }
+
+    void record(Stage stage, long nanos) {
+        stages[stage.ordinal()].record(nanos);
+    }
+
+    public void rejected() {
+        rejected.inc();
+    }
+
+    /** Interaction complète : durée totale, erreurs non gérées, et trace posée dans le contexte. */
+    public Mono<Void> measure(Mono<Void> interaction, int shard, long guildId, long userId) {
+        return Mono.defer(() -> {
+            Trace trace = new Trace(this, command, policy, shard, guildId, userId);
+            long start = System.nanoTime();
+            return interaction
+                    .doOnError(e -> errors.inc())
+                    .doFinally(signal -> {
+                        duration.record(System.nanoTime() - start);
+                        trace.finish(signal);
+                    })
+                    .contextWrite(trace.context());
+        });
+    }
+
+    /** Durée d'une étape, de la souscription à la fin (ou à l'annulation). */
+    public static <T> Mono<T> time(Stage stage, Mono<T> step) {
+        return Mono.deferContextual(ctx -> {
+            Trace trace = Trace.from(ctx);
+            long start = System.nanoTime();
+            return onEnd(step, () -> trace.record(stage, System.nanoTime() - start));
+        });
+    }
+
+    /** Appel au modèle : durée (étape {@link Stage#BACKEND}), premier token, échecs et timeouts. */
+    public static <T> Flux<T> backend(Flux<T> call) {
+        return Flux.deferContextual(ctx -> {
+            Trace trace = Trace.from(ctx);
+            CommandMetrics metrics = trace.metrics();
+            long start = System.nanoTime();
+            return onEnd(call
+                    .doOnNext(v -> trace.firstToken())
+                    .doOnError(e -> {
+                        // Délestage : le backend n'a pas été appelé (cas d'une génération partagée, voir ResponseCache)
+                        if (e instanceof AdmissionController.OverloadedException) return;
+                        (e instanceof TimeoutException ? metrics.backendTimeouts : metrics.backendErrors).inc();
+                    }),
+                    () -> trace.record(Stage.BACKEND, System.nanoTime() - start));
+        });
+    }
+
+    public static <T> Mono<T> backend(Mono<T> call) {
+        return backend(call.flux()).singleOrEmpty();
+    }
+
+    /**
+     * {@code done} est appelé une fois, à la fin, l'erreur ou l'annulation, mais avant que la fin ne soit
+     * propagée en aval : avec doFinally, la suite de la chaîne (et la fin de l'interaction) passerait avant.
+     */
+    static <T> Flux<T> onEnd(Flux<T> flux, Runnable done) {
+        return Flux.defer(() -> {
+            Runnable once = once(done);
+            return flux.doOnComplete(once).doOnError(e -> once.run()).doOnCancel(once);
+        });
+    }
+
+    /** Pour un Mono, la fin est le premier signal : la valeur n'est pas propagée avant la mesure. */
+    static <T> Mono<T> onEnd(Mono<T> mono, Runnable done) {
+        return Mono.defer(() -> {
+            Runnable once = once(done);
+            return mono.doOnSuccess(v -> once.run()).doOnError(e -> once.run()).doOnCancel(once);
+        });
+    }
+
+    private static Runnable once(Runnable action) {
+        AtomicBoolean done = new AtomicBoolean();
+        return () -> {
+            if (done.compareAndSet(false, true)) action.run();
+        };
+    }
+}
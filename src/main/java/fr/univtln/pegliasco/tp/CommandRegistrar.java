@@ -0,0 +1,152 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.discordjson.json.ApplicationCommandData;
+import discord4j.discordjson.json.ApplicationCommandOptionChoiceData;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import discord4j.discordjson.possible.Possible;
+import discord4j.rest.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Synchronise les commandes globales en un seul passage :
+ * <ul>
+ *     <li>si le hash des définitions est celui du dernier déploiement (fichier local), aucun appel REST ;</li>
+ *     <li>sinon, une seule lecture des commandes existantes, comparée par hash de contenu ;</li>
+ *     <li>et un unique bulk overwrite si quelque chose a changé (ajout, modification ou suppression).</li>
+ * </ul>
+ */
+public final class CommandRegistrar {
+
+    private static final Logger log = LoggerFactory.getLogger(CommandRegistrar.class);
+
+    private final RestClient rest;
+    private final Path hashFile;
+
+    public CommandRegistrar(RestClient rest, Path hashFile) {
+        this.rest = rest;
+        this.hashFile = hashFile;
+    }
+
+    public Mono<Void> sync(List<ApplicationCommandRequest> desired) {
+        TreeMap<String, String> wanted = new TreeMap<>();
+        desired.forEach(req -> wanted.put(req.name(), canonical(req)));
+        String desiredHash = hash(wanted);
+
+        return rest.getApplicationId()
+                .flatMap(appId -> readCachedHash().defaultIfEmpty("").flatMap(cached -> {
+                    String stamp = appId + ":" + desiredHash;
+                    if (stamp.equals(cached)) {
+                        log.info("Commandes globales inchangées (hash {}), aucun appel REST.", shortHash(desiredHash));
+                        return Mono.empty();
+                    }
+                    return rest.getApplicationService()
+                            .getGlobalApplicationCommands(appId)
+                            .collectMap(ApplicationCommandData::name, CommandRegistrar::canonical, TreeMap::new)
+                            .flatMap(existing -> {
+                                if (desiredHash.equals(hash(existing))) {
+                                    log.info("Commandes globales déjà à jour côté Discord ({} commandes).", existing.size());
+                                    return writeCachedHash(stamp);
+                                }
+                                log.info("Commandes globales modifiées ({} existantes → {} attendues), bulk overwrite...",
+                                        existing.size(), wanted.size());
+                                return rest.getApplicationService()
+                                        .bulkOverwriteGlobalApplicationCommand(appId, desired)
+                                        .count()
+                                        .doOnNext(n -> log.info("{} commandes globales enregistrées.", n))
+                                        .then(writeCachedHash(stamp));
+                            });
+                }))
+                .onErrorResume(e -> {
+                    log.error("Erreur lors de l'enregistrement des commandes : {}", e.getMessage(), e);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<String> readCachedHash() {
+        return Mono.fromCallable(() -> Files.exists(hashFile) ? Files.readString(hashFile).trim() : null)
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorResume(IOException.class, e -> {
+                    log.warn("Lecture du cache de commandes {} impossible : {}", hashFile, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> writeCachedHash(String stamp) {
+        return Mono.fromCallable(() -> Files.writeString(hashFile, stamp))
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorResume(IOException.class, e -> {
+                    log.warn("Écriture du cache de commandes {} impossible : {}", hashFile, e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /* ---------- Forme canonique : mêmes champs côté requête et côté Discord ---------- */
+
+    private static String canonical(ApplicationCommandRequest req) {
+        return canonical(req.name(), req.description().toOptional().orElse(""), req.options());
+    }
+
+    private static String canonical(ApplicationCommandData data) {
+        return canonical(data.name(), data.description(), data.options());
+    }
+
+    private static String canonical(String name, String description, Possible<List<ApplicationCommandOptionData>> options) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append('|').append(description);
+        appendOptions(sb, options);
+        return sb.toString();
+    }
+
+    private static void appendOptions(StringBuilder sb, Possible<List<ApplicationCommandOptionData>> options) {
+        sb.append('[');
+        for (ApplicationCommandOptionData opt : options.toOptional().orElse(Collections.emptyList())) {
+            sb.append('{')
+                    .append(opt.type()).append('|')
+                    .append(opt.name()).append('|')
+                    .append(opt.description()).append('|')
+                    .append(opt.required().toOptional().orElse(false));
+            sb.append('(');
+            for (ApplicationCommandOptionChoiceData choice : opt.choices().toOptional().orElse(Collections.emptyList())) {
+                sb.append(choice.name()).append('=').append(choice.value()).append(';');
+            }
+            sb.append(')');
+            appendOptions(sb, opt.options());
+            sb.append('}');
+        }
+        sb.append(']');
+    }
+
+    private static String hash(Map<String, String> commands) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            commands.values().forEach(c -> {
+                digest.update(c.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            });
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String shortHash(String hash) {
+        return hash.substring(0, 12);
+    }
+}
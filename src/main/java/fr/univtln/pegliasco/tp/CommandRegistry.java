@@ -0,0 +1,120 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.core.object.command.ApplicationCommandInteractionOption;
+import discord4j.core.object.command.ApplicationCommandOption;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Table de routage des commandes slash : une seule souscription à
+ * {@link ChatInputInteractionEvent}, puis un lookup par nom (et sous-commande).
+ */
+public final class CommandRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(CommandRegistry.class);
+
+    private final Metrics metrics;
+    private final Trace.Policy tracing;
+    private final Map<String, Route> routes = new HashMap<>();
+    private final Map<String, ApplicationCommandRequest> definitions = new LinkedHashMap<>();
+
+    public CommandRegistry(Metrics metrics, Trace.Policy tracing) {
+        this.metrics = metrics;
+        this.tracing = tracing;
+    }
+
+    public CommandRegistry register(CommandHandler handler) {
+        String key = key(handler.name(), handler.subcommand());
+        if (routes.putIfAbsent(key, new Route(handler, new CommandMetrics(metrics, key, tracing))) != null) {
+            throw new IllegalStateException("Commande déjà enregistrée : /" + key);
+        }
+        definitions.putIfAbsent(handler.name(), handler.definition());
+        return this;
+    }
+
+    /** Définitions à déclarer à Discord, une par commande de premier niveau. */
+    public List<ApplicationCommandRequest> definitions() {
+        return new ArrayList<>(definitions.values());
+    }
+
+    /** Abonnement unique : chaque interaction n'est traitée qu'une fois. */
+    public Mono<Void> listen(GatewayDiscordClient gateway) {
+        return gateway.on(ChatInputInteractionEvent.class, this::dispatch).then();
+    }
+
+    public Mono<Void> dispatch(ChatInputInteractionEvent evt) {
+        String name = evt.getCommandName();
+        Route route = null;
+
+        String sub = subcommandOf(evt);
+        if (sub != null) {
+            route = routes.get(key(name, sub));
+        }
+        if (route == null) {
+            route = routes.get(name);
+        }
+        if (route == null) {
+            log.warn("Interaction /{} reçue sans handler associé", name);
+            return Mono.empty();
+        }
+        return route.run(evt);
+    }
+
+    private static String subcommandOf(ChatInputInteractionEvent evt) {
+        for (ApplicationCommandInteractionOption opt : evt.getOptions()) {
+            if (opt.getType() == ApplicationCommandOption.Type.SUB_COMMAND) {
+                return opt.getName();
+            }
+        }
+        return null;
+    }
+
+    private static String key(String name, String subcommand) {
+        return subcommand == null ? name : name + " " + subcommand;
+    }
+
+    private static final class Route {
+        private final CommandHandler handler;
+        private final CommandMetrics metrics;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Route(CommandHandler handler, CommandMetrics metrics) {
+            this.handler = handler;
+            this.metrics = metrics;
+        }
+
+        Mono<Void> run(ChatInputInteractionEvent evt) {
+            String label = key(handler.name(), handler.subcommand());
+            if (inFlight.incrementAndGet() > handler.maxConcurrency()) {
+                inFlight.decrementAndGet();
+                metrics.rejected();
+                log.warn("Interaction /{} refusée : {} exécutions déjà en cours", label, handler.maxConcurrency());
+                return evt.reply()
+                        .withEphemeral(true)
+                        .withContent("Trop de requêtes /" + label + " en cours, réessayez dans un instant.");
+            }
+            long guildId = evt.getInteraction().getGuildId().map(Snowflake::asLong).orElse(0L);
+            long userId = evt.getInteraction().getUser().getId().asLong();
+            return metrics.measure(Mono.defer(() -> handler.handle(evt)), evt.getShardInfo().getIndex(), guildId, userId)
+                    .onErrorResume(e -> {
+                        log.error("Erreur handler {} : {}", label, e.getMessage(), e);
+                        return Mono.empty();
+                    })
+                    .doFinally(signal -> inFlight.decrementAndGet())
+                    // File équitable des appels au modèle : par serveur puis par utilisateur
+                    .contextWrite(AdmissionController.tenant(guildId, userId));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package fr.univtln.pegliasco.tp;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mémoire des conversations avec le bot (mentions), une session par salon ou fil.
+ * <ul>
+ *     <li>tant que le backend renvoie son état ("context", format Ollama), le tour suivant n'envoie
+ *     que le nouveau message avec cet état : le modèle ne réévalue pas l'historique ;</li>
+ *     <li>sinon (premier tour, backend sans état, état trop long ou tours concurrents dans le salon),
+ *     le message est précédé du résumé et des derniers échanges ;</li>
+ *     <li>au-delà du budget ({@code maxTokens}, estimé à 4 caractères par token, ou {@code maxTurns}),
+ *     les plus anciens échanges sont résumés par le modèle ({@link #compact(long)}) ;</li>
+ *     <li>sessions évincées après {@code ttl} d'inactivité, au plus {@code maxChannels} en mémoire.</li>
+ * </ul>
+ */
+public final class ConversationMemory {
+
+    private static final Logger log = LoggerFactory.getLogger(ConversationMemory.class);
+
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private record Turn(String question, String answer, int tokens) {}
+
+    // Tout l'état d'une session est protégé par son moniteur
+    private static final class Session {
+        String summary = "";
+        final ArrayDeque<Turn> turns = new ArrayDeque<>();
+        int turnTokens;
+        int[] context;
+        long version;
+        boolean compacting;
+    }
+
+    private final OllamaClient ollama;
+    private final int maxTokens;
+    private final int maxTurns;
+    private final Cache<Long, Session> sessions;
+
+    /** {@code maxTokens <= 0} désactive la mémoire : chaque mention est traitée seule. */
+    public ConversationMemory(OllamaClient ollama, int maxTokens, int maxTurns, Duration ttl, long maxChannels) {
+        this.ollama = ollama;
+        this.maxTokens = maxTokens;
+        this.maxTurns = Math.max(2, maxTurns);
+        this.sessions = Caffeine.newBuilder()
+                .maximumSize(maxChannels)
+                .expireAfterAccess(ttl)
+                .build();
+    }
+
+    public long size() {
+        return sessions.estimatedSize();
+    }
+
+    /** Réponse du modèle à {@code question}, dans la conversation du salon {@code channelId}. */
+    public Flux<String> reply(long channelId, String question) {
+        if (maxTokens <= 0) return ollama.stream(question);
+        return Flux.defer(() -> {
+            Session session = sessions.get(channelId, id -> new Session());
+            long version;
+            int[] context;
+            String message;
+            synchronized (session) {
+                version = session.version;
+                context = session.context;
+                message = context != null ? question : prompt(session, question);
+            }
+            StringBuilder answer = new StringBuilder();
+            int[][] returned = new int[1][];
+            return ollama.streamChat(message, context, ctx -> returned[0] = ctx)
+                    .doOnNext(answer::append)
+                    .doOnComplete(() -> record(session, version, question, answer.toString(), returned[0]));
+        });
+    }
+
+    /**
+     * Résume les plus anciens échanges du salon si le budget est dépassé ; à enchaîner après la réponse
+     * (l'utilisateur n'attend pas le résumé). En cas d'échec, ces échanges sont oubliés.
+     */
+    public Mono<Void> compact(long channelId) {
+        if (maxTokens <= 0) return Mono.empty();
+        return Mono.defer(() -> {
+            Session session = sessions.getIfPresent(channelId);
+            if (session == null) return Mono.empty();
+            List<Turn> folded;
+            String transcript;
+            synchronized (session) {
+                if (session.compacting || !overBudget(session)) return Mono.empty();
+                folded = oldest(session);
+                if (folded.isEmpty()) return Mono.empty();
+                transcript = transcript(session.summary, folded);
+                session.compacting = true;
+            }
+            return ollama.summarizeConversation(transcript)
+                    .doOnNext(summary -> fold(session, folded, summary.trim()))
+                    .onErrorResume(e -> {
+                        log.warn("Résumé de la conversation du salon {} impossible, {} échanges oubliés : {}",
+                                channelId, folded.size(), e.getMessage());
+                        fold(session, folded, null);
+                        return Mono.empty();
+                    })
+                    .doFinally(signal -> {
+                        synchronized (session) {
+                            session.compacting = false;
+                        }
+                    })
+                    .then();
+        });
+    }
+
+    private void record(Session session, long version, String question, String answer, int[] context) {
+        Turn turn = new Turn(question, answer, estimate(question) + estimate(answer));
+        synchronized (session) {
+            session.turns.addLast(turn);
+            session.turnTokens += turn.tokens();
+            // L'état ne vaut que s'il prolonge le dernier tour connu et tient dans le budget
+            boolean continues = session.version == version;
+            session.context = continues && context != null && context.length <= maxTokens ? context : null;
+            session.version++;
+        }
+    }
+
+    private void fold(Session session, List<Turn> folded, String summary) {
+        synchronized (session) {
+            for (Turn turn : folded) {
+                // Les tours résumés sont en tête : ceux arrivés entre-temps sont à la suite
+                if (session.turns.peekFirst() != turn) break;
+                session.turns.pollFirst();
+                session.turnTokens -= turn.tokens();
+            }
+            if (summary != null && !summary.isEmpty()) session.summary = summary;
+        }
+    }
+
+    private boolean overBudget(Session session) {
+        return session.turns.size() > maxTurns || estimate(session.summary) + session.turnTokens > maxTokens;
+    }
+
+    /** Plus anciens échanges à résumer : on garde au plus la moitié du budget et des tours. */
+    private List<Turn> oldest(Session session) {
+        List<Turn> folded = new ArrayList<>();
+        int tokens = session.turnTokens;
+        int turns = session.turns.size();
+        for (Turn turn : session.turns) {
+            if (turns <= 1 || (tokens <= maxTokens / 2 && turns <= maxTurns / 2)) break;
+            folded.add(turn);
+            tokens -= turn.tokens();
+            turns--;
+        }
+        return folded;
+    }
+
+    /** Message complet quand le backend n'a pas d'état : résumé, derniers échanges, puis la question. */
+    private static String prompt(Session session, String question) {
+        if (session.summary.isEmpty() && session.turns.isEmpty()) return question;
+        StringBuilder sb = new StringBuilder("Conversation en cours dans ce salon.\n");
+        if (!session.summary.isEmpty()) {
+            sb.append("Résumé des échanges précédents : ").append(session.summary).append('\n');
+        }
+        if (!session.turns.isEmpty()) {
+            sb.append("Derniers échanges :\n");
+            appendTurns(sb, session.turns);
+        }
+        return sb.append("Nouveau message de l'utilisateur : ").append(question).toString();
+    }
+
+    private static String transcript(String summary, List<Turn> turns) {
+        StringBuilder sb = new StringBuilder();
+        if (!summary.isEmpty()) sb.append("Résumé précédent : ").append(summary).append('\n');
+        appendTurns(sb, turns);
+        return sb.toString();
+    }
+
+    private static void appendTurns(StringBuilder sb, Iterable<Turn> turns) {
+        for (Turn turn : turns) {
+            sb.append("Utilisateur : ").append(turn.question()).append('\n');
+            sb.append("Assistant : ").append(turn.answer()).append('\n');
+        }
+    }
+
+    private static int estimate(String text) {
+        return (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+}
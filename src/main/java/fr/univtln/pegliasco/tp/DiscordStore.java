@@ -0,0 +1,88 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.common.store.Store;
+import discord4j.common.store.api.StoreFlag;
+import discord4j.common.store.impl.LocalStoreLayout;
+import discord4j.common.store.impl.SelectiveStoreLayout;
+import discord4j.common.store.impl.StorageBackend;
+import discord4j.common.store.impl.StorageConfig;
+import discord4j.core.shard.MemberRequestFilter;
+import reactor.core.publisher.Mono;
+
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Cache d'entités Discord4J selon le profil choisi ({@code DISCORD_STORE_PROFILE}) :
+ * <ul>
+ *     <li>{@code full} : comportement par défaut de Discord4J, membres des grosses guildes
+ *     demandés à la connexion et tous les types d'entités conservés ;</li>
+ *     <li>{@code lean} : guildes, salons, rôles, membres et utilisateurs seulement, sans messages
+ *     (stockage no-op), présences, états vocaux, emojis, stickers ni événements planifiés ;
+ *     aucune demande de membres à la connexion : le cache ne contient que les membres vus
+ *     passer (arrivées, mises à jour, messages).</li>
+ * </ul>
+ * Dans le profil lean, la liste des membres d'une guilde n'est jamais complète : Discord4J
+ * la lit alors via REST ({@code /refresh}), seule commande qui en a besoin.
+ */
+final class DiscordStore {
+
+    enum Profile {
+        LEAN, FULL;
+
+        static Profile parse(String value) {
+            if (value == null || value.isBlank()) return LEAN;
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("DISCORD_STORE_PROFILE invalide : " + value + " (lean ou full)", e);
+            }
+        }
+    }
+
+    private static final EnumSet<StoreFlag> LEAN_FLAGS =
+            EnumSet.of(StoreFlag.GUILD, StoreFlag.CHANNEL, StoreFlag.ROLE, StoreFlag.MEMBER, StoreFlag.USER);
+
+    private final Profile profile;
+    private final LocalStoreLayout layout;
+
+    DiscordStore(Profile profile) {
+        this.profile = profile;
+        this.layout = profile == Profile.LEAN
+                ? LocalStoreLayout.create(StorageConfig.builder().setMessageBackend(StorageBackend.noOp()).build())
+                : LocalStoreLayout.create();
+    }
+
+    Profile profile() {
+        return profile;
+    }
+
+    Store store() {
+        return profile == Profile.LEAN
+                ? Store.fromLayout(SelectiveStoreLayout.create(LEAN_FLAGS, layout))
+                : Store.fromLayout(layout);
+    }
+
+    MemberRequestFilter memberRequestFilter() {
+        return profile == Profile.LEAN ? MemberRequestFilter.none() : MemberRequestFilter.DEFAULT;
+    }
+
+    /** Taille du cache par type d'entité, pour comparer les profils. */
+    void registerGauges(Metrics metrics) {
+        metrics.gauges("bot_discord_store_entities", "Entités dans le cache Discord4J", sampler -> {
+            sampler.sample(count(layout.countGuilds()), "type", "guild");
+            sampler.sample(count(layout.countChannels()), "type", "channel");
+            sampler.sample(count(layout.countRoles()), "type", "role");
+            sampler.sample(count(layout.countMembers()), "type", "member");
+            sampler.sample(count(layout.countUsers()), "type", "user");
+            sampler.sample(count(layout.countMessages()), "type", "message");
+            sampler.sample(count(layout.countPresences()), "type", "presence");
+        });
+    }
+
+    /** Les comptes du cache local sont immédiats : pas de block() dans le thread de l'export. */
+    private static long count(Mono<Long> count) {
+        Long value = count.toFuture().getNow(null);
+        return value == null ? 0 : value;
+    }
+}
@@ -0,0 +1,124 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.core.object.command.ApplicationCommandInteractionOption;
+import discord4j.core.object.command.ApplicationCommandInteractionOptionValue;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import discord4j.discordjson.json.MemberData;
+import discord4j.rest.util.Permission;
+import discord4j.rest.util.PermissionSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Gestion des documents indexés du salon : /docs list, /docs remove, /docs clear.
+ * Retirer des documents demande la permission « Gérer les messages » sur le salon (sauf en MP).
+ */
+public class DocsCommand implements CommandHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(DocsCommand.class);
+
+    private static final ApplicationCommandRequest DEFINITION = ApplicationCommandRequest.builder()
+            .name("docs")
+            .description("Documents indexés dans ce salon pour /qa.")
+            .addOption(ApplicationCommandOptionData.builder()
+                    .name("list")
+                    .description("Lister les documents indexés")
+                    .type(1) // SUB_COMMAND
+                    .build())
+            .addOption(ApplicationCommandOptionData.builder()
+                    .name("remove")
+                    .description("Retirer un document")
+                    .type(1) // SUB_COMMAND
+                    .addOption(ApplicationCommandOptionData.builder()
+                            .name("id")
+                            .description("Identifiant du document (voir /docs list)")
+                            .type(4) // INTEGER
+                            .required(true)
+                            .build())
+                    .build())
+            .addOption(ApplicationCommandOptionData.builder()
+                    .name("clear")
+                    .description("Retirer tous les documents du salon")
+                    .type(1) // SUB_COMMAND
+                    .build())
+            .build();
+
+    private final DocumentStore documents;
+
+    public DocsCommand(DocumentStore documents) {
+        this.documents = documents;
+    }
+
+    @Override
+    public ApplicationCommandRequest definition() {
+        return DEFINITION;
+    }
+
+    @Override
+    public Mono<Void> handle(ChatInputInteractionEvent evt) {
+        long channelId = evt.getInteraction().getChannelId().asLong();
+
+        if (evt.getOption("list").isPresent()) {
+            List<DocumentStore.DocumentInfo> docs = documents.list(channelId);
+            if (docs.isEmpty()) {
+                return reply(evt, "Aucun document indexé sur ce salon.");
+            }
+            StringBuilder sb = new StringBuilder("Documents indexés (")
+                    .append(documents.channelBytes(channelId) / 1024).append(" Ko) :\n");
+            for (DocumentStore.DocumentInfo doc : docs) {
+                sb.append("• `").append(doc.id()).append("` ")
+                        .append(MessageUtils.escapeDiscordMarkdown(doc.name()))
+                        .append(" (").append(doc.bytes() / 1024).append(" Ko)\n");
+            }
+            List<String> parts = MessageUtils.splitForDiscord(sb.toString());
+            return reply(evt, parts.get(0))
+                    .thenMany(Flux.fromIterable(parts.subList(1, parts.size())))
+                    .concatMap(part -> evt.createFollowup().withEphemeral(true).withContent(part))
+                    .then();
+        }
+
+        if (!canManage(evt)) {
+            return reply(evt, "Il faut la permission « Gérer les messages » pour retirer des documents.");
+        }
+
+        if (evt.getOption("remove").isPresent()) {
+            long id = evt.getOption("remove")
+                    .flatMap(o -> o.getOption("id"))
+                    .flatMap(ApplicationCommandInteractionOption::getValue)
+                    .map(ApplicationCommandInteractionOptionValue::asLong)
+                    .orElse(-1L);
+            boolean removed = documents.remove(channelId, id);
+            log.info("/docs remove {} sur le salon {} : {}", id, channelId, removed);
+            return reply(evt, removed ? "Document " + id + " retiré." : "Aucun document " + id + " sur ce salon.");
+        }
+
+        if (evt.getOption("clear").isPresent()) {
+            int count = documents.clear(channelId);
+            log.info("/docs clear sur le salon {} : {} documents retirés", channelId, count);
+            return reply(evt, count + " document(s) retiré(s).");
+        }
+
+        return Mono.empty();
+    }
+
+    /** Permissions du membre sur le salon, telles qu'envoyées avec l'interaction (pas d'appel REST). */
+    private static boolean canManage(ChatInputInteractionEvent evt) {
+        return evt.getInteraction().getData().member().toOptional()
+                .map(MemberData::permissions)
+                .map(p -> p.toOptional()
+                        .map(raw -> PermissionSet.of(Long.parseLong(raw)))
+                        .map(set -> set.contains(Permission.MANAGE_MESSAGES) || set.contains(Permission.ADMINISTRATOR))
+                        .orElse(false))
+                .orElse(true); // MP : pas de membre, l'utilisateur gère sa conversation
+    }
+
+    private static Mono<Void> reply(ChatInputInteractionEvent evt, String content) {
+        return evt.reply().withEphemeral(true).withContent(content);
+    }
+}
@@ -0,0 +1,555 @@
+package fr.univtln.pegliasco.tp;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Persistance des documents indexés dans des segments en ajout seul ({@code segment-000001.log}, ...).
+ * <ul>
+ *     <li>chaque ajout écrit un enregistrement compressé en LZ4, chaque retrait une marque de suppression ;</li>
+ *     <li>les vecteurs des passages ({@link VectorRetriever.VectorStore}) suivent leur document, par lot :
+ *     ils sont relus depuis le {@code mmap} à la demande, au lieu d'être recalculés par le backend ;</li>
+ *     <li>au démarrage, les segments sont projetés en mémoire ({@code mmap}) et seuls les en-têtes
+ *     sont parcourus pour reconstruire l'index des positions par salon ; les documents sont ensuite
+ *     rechargés en arrière-plan ({@link #restoreInto(DocumentStore)}) ;</li>
+ *     <li>quand les enregistrements morts dépassent la moitié des segments scellés, les documents
+ *     vivants et leurs vecteurs sont recopiés tels quels dans le segment courant et les anciens segments supprimés.</li>
+ * </ul>
+ * Toutes les écritures passent par un fil unique, dans l'ordre des notifications du {@link DocumentStore}.
+ * Le répertoire est verrouillé ({@code lock}) : un second processus sur le même répertoire refuse de démarrer.
+ */
+public final class DocumentSegments implements DocumentStore.Listener, VectorRetriever.VectorStore, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentSegments.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final int MAGIC = 0x444F4331; // "DOC1"
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte VECTORS = 3;
+
+    // magic, type, identifiant du document, identifiant du salon
+    private static final int HEADER = 4 + 1 + 8 + 8;
+    // ADD : date d'ajout et longueur du nom, puis le nom...
+    private static final int ADD_PREFIX = 8 + 2;
+    // ... puis taille brute, taille compressée et CRC32 du contenu compressé
+    private static final int ADD_SUFFIX = 4 + 4 + 4;
+    private static final int MAX_NAME_CHARS = 255;
+    // VECTORS : modèle (hash), premier passage, nombre de passages, dimension, CRC32, puis les float
+    private static final int VECTORS_PREFIX = 4 + 4 + 4 + 4 + 4;
+
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        long size;
+        long deadBytes;
+
+        Segment(int id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    /** Position d'un document vivant : enregistrement complet et contenu compressé. */
+    private record Entry(DocumentStore.DocumentInfo info, Segment segment, long offset, int length,
+                         int payloadDelta, int compressedLength, int crc) {
+
+        Entry movedTo(Segment target, long newOffset) {
+            return new Entry(info, target, newOffset, length, payloadDelta, compressedLength, crc);
+        }
+    }
+
+    /** Position d'un lot de vecteurs d'un document vivant. */
+    private record Vectors(Segment segment, long offset, int length, int model, int first, int count, int dim,
+                           int crc) {
+
+        Vectors movedTo(Segment target, long newOffset) {
+            return new Vectors(target, newOffset, length, model, first, count, dim, crc);
+        }
+    }
+
+    private final Path directory;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final long maxSegmentBytes;
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+    private final Scheduler writer = Schedulers.newSingle("document-segments");
+
+    // Confinés au fil d'écriture une fois le constructeur terminé
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<Long, Map<Long, Entry>> channels = new HashMap<>();
+    private final Map<Long, List<Vectors>> vectors = new HashMap<>();       // par identifiant de document
+    private final Map<Segment, MappedByteBuffer> mapped = new HashMap<>();
+    private Segment active;
+    private FileChannel activeChannel;
+
+    public DocumentSegments(Path directory, long maxSegmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, MAX_SEGMENT_BYTES);
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve("lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = tryLock(lockChannel);
+        if (lock == null) {
+            lockChannel.close();
+            throw new IllegalStateException("Répertoire des documents " + directory
+                    + " déjà utilisé par un autre processus (DOCUMENTS_DIR distinct par processus)");
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> {
+                Matcher m = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (m.matches()) {
+                    int id = Integer.parseInt(m.group(1));
+                    segments.put(id, new Segment(id, path));
+                }
+            });
+        }
+        for (Segment segment : segments.values()) {
+            load(segment, segment == segments.lastEntry().getValue());
+        }
+
+        Segment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (last != null && last.size < this.maxSegmentBytes) {
+            open(last);
+        } else {
+            open(newSegment());
+        }
+        log.info("Segments de documents chargés depuis {} : {} segment(s), {} document(s)",
+                directory, segments.size(), channels.values().stream().mapToInt(Map::size).sum());
+    }
+
+    /**
+     * Recharge les documents persistés dans le store, du plus ancien au plus récent, sur le fil d'écriture
+     * (le démarrage n'attend pas ; les vecteurs, eux, ne sont lus qu'au passage de chaque lot).
+     * Les documents corrompus, expirés ou hors quota sont aussi oubliés sur disque.
+     */
+    public Mono<Integer> restoreInto(DocumentStore store) {
+        return Mono.fromCallable(() -> {
+                    List<Entry> entries = new ArrayList<>();
+                    channels.values().forEach(docs -> entries.addAll(docs.values()));
+                    entries.sort(Comparator.comparingLong(e -> e.info().id()));
+
+                    int count = 0;
+                    for (Entry entry : entries) {
+                        String text = read(entry);
+                        if (text != null && store.restore(entry.info(), text)) {
+                            count++;
+                        } else {
+                            removed(entry.info());
+                        }
+                    }
+                    log.info("{} document(s) rechargé(s) depuis le disque", count);
+                    return count;
+                })
+                .subscribeOn(writer);
+    }
+
+    @Override
+    public Mono<List<float[]>> vectors(DocumentStore.DocumentInfo doc, String model, int first, int count) {
+        return Mono.fromCallable(() -> {
+                    for (Vectors v : vectors.getOrDefault(doc.id(), List.of())) {
+                        if (v.model() == model.hashCode() && v.first() == first && v.count() == count) {
+                            return read(v, doc);
+                        }
+                    }
+                    return null;
+                })
+                .subscribeOn(writer);
+    }
+
+    @Override
+    public void saveVectors(DocumentStore.DocumentInfo doc, String model, int first, List<float[]> batch) {
+        writer.schedule(() -> {
+            Map<Long, Entry> docs = channels.get(doc.channelId());
+            if (docs == null || !docs.containsKey(doc.id()) || batch.isEmpty()) return; // document retiré
+            try {
+                writeVectors(doc, model.hashCode(), first, batch);
+            } catch (IOException e) {
+                log.warn("Vecteurs du document {} non persistés : {}", doc.name(), e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void added(DocumentStore.DocumentInfo doc, String text) {
+        writer.schedule(() -> {
+            Map<Long, Entry> docs = channels.get(doc.channelId());
+            if (docs != null && docs.containsKey(doc.id())) return; // relu depuis le disque
+            try {
+                write(doc, text);
+            } catch (IOException e) {
+                log.error("Écriture du document {} impossible : {}", doc.name(), e.getMessage(), e);
+            }
+        });
+    }
+
+    @Override
+    public void removed(DocumentStore.DocumentInfo doc) {
+        writer.schedule(() -> {
+            if (forget(doc.channelId(), doc.id()) == null) return;
+            try {
+                ByteBuffer record = ByteBuffer.allocate(HEADER)
+                        .putInt(MAGIC).put(REMOVE).putLong(doc.id()).putLong(doc.channelId())
+                        .flip();
+                append(record);
+                activeChannel.force(false);
+                active.deadBytes += HEADER;
+                compactIfNeeded();
+            } catch (IOException e) {
+                log.error("Retrait du document {} non persisté : {}", doc.name(), e.getMessage(), e);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        Mono.fromRunnable(() -> {
+                    try {
+                        activeChannel.force(true);
+                        activeChannel.close();
+                    } catch (IOException e) {
+                        log.warn("Fermeture du segment {} : {}", active.path, e.getMessage());
+                    }
+                })
+                .subscribeOn(writer)
+                .block();
+        writer.dispose();
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            log.warn("Libération du verrou de {} : {}", directory, e.getMessage());
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null; // déjà verrouillé par ce processus
+        }
+    }
+
+    /* ---------- Écriture (fil d'écriture) ---------- */
+
+    private void write(DocumentStore.DocumentInfo doc, String text) throws IOException {
+        String shortName = doc.name().length() > MAX_NAME_CHARS ? doc.name().substring(0, MAX_NAME_CHARS) : doc.name();
+        byte[] name = shortName.getBytes(StandardCharsets.UTF_8);
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compressor.compress(raw);
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+
+        int payloadDelta = HEADER + ADD_PREFIX + name.length + ADD_SUFFIX;
+        ByteBuffer record = ByteBuffer.allocate(payloadDelta + compressed.length)
+                .putInt(MAGIC).put(ADD).putLong(doc.id()).putLong(doc.channelId())
+                .putLong(doc.addedAt().toEpochMilli())
+                .putShort((short) name.length).put(name)
+                .putInt(raw.length).putInt(compressed.length).putInt((int) crc.getValue())
+                .put(compressed)
+                .flip();
+        int length = record.remaining();
+        long offset = append(record);
+        activeChannel.force(false);
+
+        channels.computeIfAbsent(doc.channelId(), k -> new HashMap<>())
+                .put(doc.id(), new Entry(doc, active, offset, length, payloadDelta, compressed.length,
+                        (int) crc.getValue()));
+    }
+
+    private void writeVectors(DocumentStore.DocumentInfo doc, int model, int first, List<float[]> batch)
+            throws IOException {
+        int dim = batch.get(0).length;
+        ByteBuffer floats = ByteBuffer.allocate(batch.size() * dim * Float.BYTES);
+        for (float[] vector : batch) {
+            if (vector.length != dim) return;
+            for (float x : vector) floats.putFloat(x);
+        }
+        floats.flip();
+        CRC32 crc = new CRC32();
+        crc.update(floats.duplicate());
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER + VECTORS_PREFIX + floats.remaining())
+                .putInt(MAGIC).put(VECTORS).putLong(doc.id()).putLong(doc.channelId())
+                .putInt(model).putInt(first).putInt(batch.size()).putInt(dim).putInt((int) crc.getValue())
+                .put(floats)
+                .flip();
+        int length = record.remaining();
+        long offset = append(record);
+        activeChannel.force(false);
+        putVectors(doc.id(), new Vectors(active, offset, length, model, first, batch.size(), dim,
+                (int) crc.getValue()));
+    }
+
+    /** Un seul lot par premier passage : celui d'un autre modèle est remplacé. */
+    private void putVectors(long documentId, Vectors added) {
+        List<Vectors> list = vectors.computeIfAbsent(documentId, k -> new ArrayList<>());
+        list.removeIf(v -> {
+            if (v.first() != added.first()) return false;
+            v.segment().deadBytes += v.length();
+            return true;
+        });
+        list.add(added);
+    }
+
+    private void dropVectors(long documentId) {
+        List<Vectors> list = vectors.remove(documentId);
+        if (list != null) list.forEach(v -> v.segment().deadBytes += v.length());
+    }
+
+    /** Ajoute l'enregistrement au segment courant (en changeant de segment s'il est plein). */
+    private long append(ByteBuffer record) throws IOException {
+        if (active.size > 0 && active.size + record.remaining() > maxSegmentBytes) {
+            activeChannel.force(true);
+            activeChannel.close();
+            open(newSegment());
+        }
+        long offset = active.size;
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            activeChannel.write(record, offset + length - record.remaining());
+        }
+        active.size += length;
+        return offset;
+    }
+
+    private Entry forget(long channelId, long documentId) {
+        Map<Long, Entry> docs = channels.get(channelId);
+        if (docs == null) return null;
+        Entry entry = docs.remove(documentId);
+        if (docs.isEmpty()) channels.remove(channelId);
+        if (entry != null) entry.segment().deadBytes += entry.length();
+        dropVectors(documentId);
+        return entry;
+    }
+
+    /* ---------- Compaction (fil d'écriture) ---------- */
+
+    private void compactIfNeeded() throws IOException {
+        long sealedBytes = 0;
+        long sealedDead = 0;
+        for (Segment segment : segments.headMap(active.id).values()) {
+            sealedBytes += segment.size;
+            sealedDead += segment.deadBytes;
+        }
+        if (sealedDead < MIN_COMPACTION_BYTES || sealedDead * 2 < sealedBytes) return;
+
+        List<Segment> sealed = new ArrayList<>(segments.headMap(active.id).values());
+        int moved = 0;
+        for (Map<Long, Entry> docs : channels.values()) {
+            for (Map.Entry<Long, Entry> e : docs.entrySet()) {
+                Entry entry = e.getValue();
+                boolean documentMoved = sealed.contains(entry.segment());
+                if (documentMoved) {
+                    ByteBuffer record = map(entry.segment()).slice((int) entry.offset(), entry.length());
+                    long offset = append(record);
+                    e.setValue(entry.movedTo(active, offset));
+                    moved++;
+                }
+                // Les vecteurs doivent rester après leur document : tous recopiés si le document l'a été
+                List<Vectors> list = vectors.getOrDefault(e.getKey(), List.of());
+                for (int i = 0; i < list.size(); i++) {
+                    Vectors v = list.get(i);
+                    if (!documentMoved && !sealed.contains(v.segment())) continue;
+                    if (!sealed.contains(v.segment())) v.segment().deadBytes += v.length();
+                    long offset = append(map(v.segment()).slice((int) v.offset(), v.length()));
+                    list.set(i, v.movedTo(active, offset));
+                }
+            }
+        }
+        activeChannel.force(true);
+
+        for (Segment segment : sealed) {
+            segments.remove(segment.id);
+            mapped.remove(segment);
+            Files.deleteIfExists(segment.path);
+        }
+        log.info("Compaction des documents : {} segment(s) supprimé(s), {} document(s) recopié(s)",
+                sealed.size(), moved);
+    }
+
+    /* ---------- Lecture ---------- */
+
+    /** Parcourt les en-têtes du segment ; une fin tronquée (arrêt brutal) est coupée sur le dernier segment. */
+    private void load(Segment segment, boolean last) throws IOException {
+        long fileSize;
+        int end;
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            fileSize = Math.min(channel.size(), MAX_SEGMENT_BYTES);
+            end = scan(segment, channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize));
+        }
+        segment.size = fileSize;
+        if (end == fileSize) return;
+
+        log.warn("Segment {} tronqué à {} octets sur {}", segment.path, end, fileSize);
+        if (last) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+            segment.size = end;
+        } else {
+            segment.deadBytes += fileSize - end;
+        }
+    }
+
+    private int scan(Segment segment, MappedByteBuffer buf) {
+        int limit = buf.limit();
+        int pos = 0;
+        while (limit - pos >= HEADER && buf.getInt(pos) == MAGIC) {
+            byte type = buf.get(pos + 4);
+            long documentId = buf.getLong(pos + 5);
+            long channelId = buf.getLong(pos + 13);
+            int body = pos + HEADER;
+
+            if (type == REMOVE) {
+                forget(channelId, documentId);
+                segment.deadBytes += HEADER;
+                pos = body;
+                continue;
+            }
+            if (type == VECTORS) {
+                if (limit - body < VECTORS_PREFIX) break;
+                int count = buf.getInt(body + 8);
+                int dim = buf.getInt(body + 12);
+                long floats = (long) count * dim * Float.BYTES;
+                if (count <= 0 || dim <= 0 || limit - body - VECTORS_PREFIX < floats) break;
+                int next = (int) (body + VECTORS_PREFIX + floats);
+                Map<Long, Entry> docs = channels.get(channelId);
+                if (docs != null && docs.containsKey(documentId)) {
+                    putVectors(documentId, new Vectors(segment, pos, next - pos, buf.getInt(body),
+                            buf.getInt(body + 4), count, dim, buf.getInt(body + 16)));
+                } else {
+                    segment.deadBytes += next - pos; // document retiré entre-temps
+                }
+                pos = next;
+                continue;
+            }
+            if (type != ADD || limit - body < ADD_PREFIX) break;
+
+            long addedAt = buf.getLong(body);
+            int nameLength = Short.toUnsignedInt(buf.getShort(body + 8));
+            int suffix = body + ADD_PREFIX + nameLength;
+            if (limit - suffix < ADD_SUFFIX) break;
+            int rawLength = buf.getInt(suffix);
+            int compressedLength = buf.getInt(suffix + 4);
+            int crc = buf.getInt(suffix + 8);
+            int payload = suffix + ADD_SUFFIX;
+            if (rawLength < 0 || compressedLength < 0 || limit - payload < compressedLength) break;
+
+            byte[] name = new byte[nameLength];
+            buf.get(body + ADD_PREFIX, name);
+            DocumentStore.DocumentInfo info = new DocumentStore.DocumentInfo(documentId, channelId,
+                    new String(name, StandardCharsets.UTF_8), rawLength, Instant.ofEpochMilli(addedAt));
+            int next = payload + compressedLength;
+            Entry previous = channels.computeIfAbsent(channelId, k -> new HashMap<>())
+                    .put(documentId, new Entry(info, segment, pos, next - pos, payload - pos, compressedLength, crc));
+            if (previous != null) {
+                // Copie laissée par une compaction : ses vecteurs sont recopiés à sa suite
+                previous.segment().deadBytes += previous.length();
+                dropVectors(documentId);
+            }
+            pos = next;
+        }
+        return pos;
+    }
+
+    /** Décompresse le contenu d'un document ; null si l'enregistrement est corrompu. */
+    private String read(Entry entry) throws IOException {
+        ByteBuffer compressed = map(entry.segment())
+                .slice((int) entry.offset() + entry.payloadDelta(), entry.compressedLength());
+        CRC32 crc = new CRC32();
+        crc.update(compressed.duplicate());
+        if ((int) crc.getValue() != entry.crc()) {
+            log.warn("Document {} corrompu sur disque (CRC), ignoré", entry.info().name());
+            return null;
+        }
+        byte[] raw = new byte[entry.info().bytes()];
+        try {
+            int n = decompressor.decompress(compressed, 0, entry.compressedLength(), ByteBuffer.wrap(raw), 0, raw.length);
+            if (n != raw.length) return null;
+        } catch (LZ4Exception e) {
+            log.warn("Document {} illisible sur disque : {}", entry.info().name(), e.getMessage());
+            return null;
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    /** Vecteurs d'un lot ; null si l'enregistrement est corrompu (ils seront recalculés). */
+    private List<float[]> read(Vectors v, DocumentStore.DocumentInfo doc) throws IOException {
+        ByteBuffer floats = map(v.segment())
+                .slice((int) v.offset() + HEADER + VECTORS_PREFIX, v.length() - HEADER - VECTORS_PREFIX);
+        CRC32 crc = new CRC32();
+        crc.update(floats.duplicate());
+        if ((int) crc.getValue() != v.crc()) {
+            log.warn("Vecteurs du document {} corrompus sur disque (CRC), recalculés", doc.name());
+            return null;
+        }
+        FloatBuffer values = floats.asFloatBuffer();
+        List<float[]> result = new ArrayList<>(v.count());
+        for (int i = 0; i < v.count(); i++) {
+            float[] vector = new float[v.dim()];
+            values.get(i * v.dim(), vector);
+            result.add(vector);
+        }
+        return result;
+    }
+
+    /** Projection du segment, refaite quand il a grandi depuis (fil d'écriture). */
+    private MappedByteBuffer map(Segment segment) throws IOException {
+        MappedByteBuffer buf = mapped.get(segment);
+        if (buf == null || buf.limit() < segment.size) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+            }
+            mapped.put(segment, buf);
+        }
+        return buf;
+    }
+
+    private Segment newSegment() {
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Segment segment = new Segment(id, directory.resolve(String.format("segment-%06d.log", id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void open(Segment segment) throws IOException {
+        activeChannel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        active = segment;
+    }
+}
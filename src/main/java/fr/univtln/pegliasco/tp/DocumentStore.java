@@ -0,0 +1,287 @@
+package fr.univtln.pegliasco.tp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Documents texte indexés par salon (pièces jointes), utilisés par /qa.
+ * <ul>
+ *     <li>stockage compact : UTF-8 en {@code byte[]} plutôt qu'en {@code String} UTF-16 ;</li>
+ *     <li>quotas en octets par salon et global, éviction LRU (salon le moins récemment utilisé,
+ *     puis document le plus ancien) et par âge (vérifié à chaque ajout et à chaque lecture) ;</li>
+ *     <li>toutes les mutations passent par un verrou unique : les ajouts concurrents
+ *     des téléchargements ne peuvent plus corrompre une liste ; les écouteurs sont notifiés
+ *     après sa libération.</li>
+ * </ul>
+ */
+public final class DocumentStore {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentStore.class);
+
+    public record DocumentInfo(long id, long channelId, String name, int bytes, Instant addedAt) {}
+
+    /** Reçoit l'occupation d'un salon (voir {@link #forEachChannel(ChannelStats)}). */
+    public interface ChannelStats {
+        void accept(long channelId, int documents, long bytes);
+    }
+
+    /**
+     * Notifié hors du verrou du store, mais un seul événement à la fois et dans l'ordre exact
+     * des ajouts et retraits (un index ne peut pas voir le retrait d'un document avant son ajout).
+     */
+    public interface Listener {
+        void added(DocumentInfo doc, String text);
+
+        void removed(DocumentInfo doc);
+    }
+
+    private static final class Document {
+        final DocumentInfo info;
+        final byte[] utf8;
+
+        Document(DocumentInfo info, byte[] utf8) {
+            this.info = info;
+            this.utf8 = utf8;
+        }
+    }
+
+    private static final class Channel {
+        // Ordre d'insertion = du plus ancien au plus récent
+        final LinkedHashMap<Long, Document> docs = new LinkedHashMap<>();
+        long bytes;
+        long lastAccess;
+    }
+
+    private final long maxBytesPerChannel;
+    private final long maxBytesTotal;
+    private final Duration maxAge;
+
+    private final AtomicLong ids = new AtomicLong();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<Long, Channel> channels = new HashMap<>();
+    private long totalBytes;
+    private long clock;
+
+    // Notifications en attente, remplies sous verrou et délivrées hors verrou par un seul fil à la fois
+    private final ArrayDeque<Runnable> events = new ArrayDeque<>();
+    private boolean delivering;
+
+    public DocumentStore(long maxBytesPerChannel, long maxBytesTotal, Duration maxAge) {
+        this.maxBytesPerChannel = maxBytesPerChannel;
+        this.maxBytesTotal = maxBytesTotal;
+        this.maxAge = maxAge;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /** Ajoute un document ; vide si le document dépasse à lui seul le quota d'un salon. */
+    public Optional<DocumentInfo> add(long channelId, String name, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > maxBytesPerChannel) {
+            log.warn("Document {} refusé pour le salon {} : {} octets (quota salon {})",
+                    name, channelId, utf8.length, maxBytesPerChannel);
+            return Optional.empty();
+        }
+
+        DocumentInfo info = new DocumentInfo(ids.incrementAndGet(), channelId, name, utf8.length, Instant.now());
+        insert(info, utf8, text);
+        return Optional.of(info);
+    }
+
+    /**
+     * Réinsère un document relu depuis le disque au démarrage, en gardant son identifiant
+     * et sa date d'ajout ; faux si le document a expiré ou dépasse le quota d'un salon.
+     */
+    public boolean restore(DocumentInfo info, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ids.accumulateAndGet(info.id(), Math::max);
+        if (utf8.length > maxBytesPerChannel || info.addedAt().isBefore(Instant.now().minus(maxAge))) {
+            return false;
+        }
+        insert(new DocumentInfo(info.id(), info.channelId(), info.name(), utf8.length, info.addedAt()), utf8, text);
+        return true;
+    }
+
+    private void insert(DocumentInfo info, byte[] utf8, String text) {
+        long channelId = info.channelId();
+        synchronized (this) {
+            evictExpired();
+
+            Channel channel = channels.computeIfAbsent(channelId, k -> new Channel());
+            channel.docs.put(info.id(), new Document(info, utf8));
+            channel.bytes += utf8.length;
+            channel.lastAccess = ++clock;
+            totalBytes += utf8.length;
+            events.add(() -> listeners.forEach(l -> l.added(info, text)));
+
+            while (channel.bytes > maxBytesPerChannel) {
+                evictOldest(channelId, channel, "quota salon");
+            }
+            while (totalBytes > maxBytesTotal && !channels.isEmpty()) {
+                evictLeastRecentlyUsed();
+            }
+        }
+        deliver();
+    }
+
+    public List<DocumentInfo> list(long channelId) {
+        List<DocumentInfo> infos = new ArrayList<>();
+        synchronized (this) {
+            evictExpired();
+            Channel channel = channels.get(channelId);
+            if (channel != null) channel.docs.values().forEach(d -> infos.add(d.info));
+        }
+        deliver();
+        return infos;
+    }
+
+    public boolean remove(long channelId, long documentId) {
+        synchronized (this) {
+            Channel channel = channels.get(channelId);
+            if (channel == null) return false;
+            Document doc = channel.docs.remove(documentId);
+            if (doc == null) return false;
+            release(channelId, channel, doc);
+        }
+        deliver();
+        return true;
+    }
+
+    /** Supprime tous les documents du salon et renvoie leur nombre. */
+    public int clear(long channelId) {
+        Channel channel;
+        synchronized (this) {
+            channel = channels.remove(channelId);
+            if (channel == null) return 0;
+            totalBytes -= channel.bytes;
+            channel.docs.values().forEach(d -> events.add(() -> listeners.forEach(l -> l.removed(d.info))));
+        }
+        deliver();
+        return channel.docs.size();
+    }
+
+    /** Marque le salon comme utilisé (éviction LRU) ; faux s'il n'a aucun document. */
+    public boolean touch(long channelId) {
+        boolean present;
+        synchronized (this) {
+            evictExpired();
+            Channel channel = channels.get(channelId);
+            present = channel != null && !channel.docs.isEmpty();
+            if (present) channel.lastAccess = ++clock;
+        }
+        deliver();
+        return present;
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long channelBytes(long channelId) {
+        Channel channel = channels.get(channelId);
+        return channel == null ? 0 : channel.bytes;
+    }
+
+    /** Occupation de chaque salon ; copiée sous verrou, {@code stats} est appelé hors verrou. */
+    public void forEachChannel(ChannelStats stats) {
+        List<long[]> rows = new ArrayList<>();
+        synchronized (this) {
+            evictExpired();
+            channels.forEach((id, channel) -> rows.add(new long[] {id, channel.docs.size(), channel.bytes}));
+        }
+        deliver();
+        for (long[] row : rows) stats.accept(row[0], (int) row[1], row[2]);
+    }
+
+    /**
+     * Délivre les notifications en attente, hors verrou. Si un autre fil est déjà en train de les délivrer,
+     * il se charge aussi des nôtres : l'ordre est conservé et un écouteur lent ne bloque pas le store.
+     */
+    private void deliver() {
+        synchronized (this) {
+            if (delivering || events.isEmpty()) return;
+            delivering = true;
+        }
+        while (true) {
+            Runnable event;
+            synchronized (this) {
+                event = events.poll();
+                if (event == null) {
+                    delivering = false;
+                    return;
+                }
+            }
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                log.error("Écouteur de documents en échec : {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /* ---------- Éviction (appelée sous verrou) ---------- */
+
+    private void evictExpired() {
+        Instant limit = Instant.now().minus(maxAge);
+        Iterator<Map.Entry<Long, Channel>> it = channels.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Channel> e = it.next();
+            Channel channel = e.getValue();
+            Iterator<Document> docs = channel.docs.values().iterator();
+            while (docs.hasNext()) {
+                Document doc = docs.next();
+                if (!doc.info.addedAt().isBefore(limit)) break; // les suivants sont plus récents
+                docs.remove();
+                channel.bytes -= doc.info.bytes();
+                totalBytes -= doc.info.bytes();
+                events.add(() -> listeners.forEach(l -> l.removed(doc.info)));
+                log.info("Document {} du salon {} expiré", doc.info.name(), e.getKey());
+            }
+            if (channel.docs.isEmpty()) it.remove();
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        long lruId = 0;
+        Channel lru = null;
+        for (Map.Entry<Long, Channel> e : channels.entrySet()) {
+            if (lru == null || e.getValue().lastAccess < lru.lastAccess) {
+                lru = e.getValue();
+                lruId = e.getKey();
+            }
+        }
+        if (lru == null) return;
+        evictOldest(lruId, lru, "quota global");
+    }
+
+    private void evictOldest(long channelId, Channel channel, String reason) {
+        Iterator<Document> it = channel.docs.values().iterator();
+        Document doc = it.next();
+        it.remove();
+        release(channelId, channel, doc);
+        log.info("Document {} du salon {} évincé ({})", doc.info.name(), channelId, reason);
+    }
+
+    private void release(long channelId, Channel channel, Document doc) {
+        channel.bytes -= doc.info.bytes();
+        totalBytes -= doc.info.bytes();
+        events.add(() -> listeners.forEach(l -> l.removed(doc.info)));
+        if (channel.docs.isEmpty()) channels.remove(channelId);
+    }
+}
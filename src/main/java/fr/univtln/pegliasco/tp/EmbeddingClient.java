@@ -0,0 +1,14 @@
+package fr.univtln.pegliasco.tp;
+
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/** Calcule un vecteur d'embedding par texte, dans l'ordre des textes fournis. */
+public interface EmbeddingClient {
+
+    Mono<List<float[]>> embed(List<String> texts);
+
+    /** Identifie le modèle : des vecteurs persistés avec un autre modèle sont recalculés. */
+    String model();
+}
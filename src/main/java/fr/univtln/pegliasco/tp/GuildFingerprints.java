@@ -0,0 +1,143 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.Role;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Dernier état de chaque guilde confirmé par le backend, sous forme d'empreintes :
+ * identifiant de rôle ou de membre → hash 64 bits des champs envoyés.
+ * Sert à n'envoyer que les entités ajoutées, modifiées ou retirées depuis le dernier refresh.
+ */
+public final class GuildFingerprints {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Empreintes d'une guilde ; 0 est réservé à « absent ».
+     * Synchronisée : la synchro par événements la met à jour pendant qu'un /refresh la lit.
+     */
+    static final class Table {
+        private final LongLongMap roles;
+        private final LongLongMap members;
+
+        Table() {
+            this(16, 64);
+        }
+
+        Table(int expectedRoles, int expectedMembers) {
+            this.roles = new LongLongMap(expectedRoles);
+            this.members = new LongLongMap(expectedMembers);
+        }
+
+        synchronized long role(long id) {
+            return roles.get(id, 0);
+        }
+
+        synchronized long member(long id) {
+            return members.get(id, 0);
+        }
+
+        synchronized void putRole(long id, long fingerprint) {
+            roles.put(id, fingerprint);
+        }
+
+        synchronized void putMember(long id, long fingerprint) {
+            members.put(id, fingerprint);
+        }
+
+        synchronized void removeRole(long id) {
+            roles.remove(id);
+        }
+
+        synchronized void removeMember(long id) {
+            members.remove(id);
+        }
+
+        synchronized int roleCount() {
+            return roles.size();
+        }
+
+        synchronized int memberCount() {
+            return members.size();
+        }
+
+        /** Rôles présents ici mais absents de {@code other}. */
+        synchronized void forEachRoleMissingFrom(Table other, LongConsumer action) {
+            roles.forEach((id, fingerprint) -> {
+                if (other.role(id) == 0) action.accept(id);
+            });
+        }
+
+        /** Membres présents ici mais absents de {@code other}. */
+        synchronized void forEachMemberMissingFrom(Table other, LongConsumer action) {
+            members.forEach((id, fingerprint) -> {
+                if (other.member(id) == 0) action.accept(id);
+            });
+        }
+    }
+
+    private final Map<Long, Table> guilds = new ConcurrentHashMap<>();
+
+    /** Empreintes confirmées, ou null si la guilde n'a jamais été envoyée depuis le démarrage. */
+    Table get(long guildId) {
+        return guilds.get(guildId);
+    }
+
+    /** À appeler une fois l'envoi accepté par le backend. */
+    void commit(long guildId, Table table) {
+        guilds.put(guildId, table);
+    }
+
+    /** Oublie la guilde : le prochain refresh sera complet. */
+    void invalidate(long guildId) {
+        guilds.remove(guildId);
+    }
+
+    static long of(Role role) {
+        long h = FNV_OFFSET;
+        h = mix(h, role.getName());
+        h = mix(h, role.getColor().getRGB());
+        h = mix(h, role.getRawPosition());
+        h = mix(h, role.getPermissions().getRawValue());
+        h = mix(h, role.isMentionable() ? 1 : 0);
+        return nonZero(h);
+    }
+
+    static long of(Member member) {
+        long h = FNV_OFFSET;
+        h = mix(h, member.getUsername());
+        h = mix(h, member.getDisplayName());
+        // Somme : indépendante de l'ordre d'itération de l'ensemble des rôles
+        long roles = 0;
+        for (Snowflake roleId : member.getRoleIds()) {
+            roles += mix(FNV_OFFSET, roleId.asLong());
+        }
+        h = mix(h, roles);
+        h = mix(h, member.getJoinTime().map(t -> t.toEpochMilli()).orElse(0L));
+        return nonZero(h);
+    }
+
+    private static long mix(long h, String s) {
+        if (s == null) return mix(h, -1L);
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        // La longueur sépare les champs ("ab" + "c" ≠ "a" + "bc")
+        return mix(h, s.length());
+    }
+
+    private static long mix(long h, long v) {
+        h = (h ^ v) * FNV_PRIME;
+        return h ^ (h >>> 31);
+    }
+
+    private static long nonZero(long h) {
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,217 @@
+package fr.univtln.pegliasco.tp;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.Role;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Snapshot JSON d'une guilde écrit en flux pour /refresh :
+ * {@code {"id", "name", "ownerId", "roles": [...], "members": [...]}}.
+ * Avec des empreintes précédentes, seul le delta est écrit :
+ * {@code {"id", "name", "ownerId", "delta": true, "roles": [modifiés], "removedRoleIds": [...],
+ * "members": [modifiés], "removedMemberIds": [...]}}.
+ * <ul>
+ *     <li>les membres sont sérialisés au fil de leur arrivée par un {@link JsonGenerator},
+ *     sans arbre {@code ObjectNode} intermédiaire ;</li>
+ *     <li>le corps sort en morceaux d'environ {@value #CHUNK_BYTES} octets (requête HTTP chunked),
+ *     optionnellement compressés en gzip ;</li>
+ *     <li>la demande du client HTTP remonte jusqu'au flux des membres (backpressure) :
+ *     la mémoire utilisée reste de l'ordre d'un morceau, quelle que soit la taille de la guilde.</li>
+ * </ul>
+ */
+final class GuildSnapshotWriter {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final int CHUNK_BYTES = 16 * 1024;
+
+    /** Reçoit la sortie du générateur ; le tampon courant est remplacé à chaque morceau émis. */
+    private static final class ChunkOutputStream extends OutputStream {
+        ByteBuf current = ByteBufAllocator.DEFAULT.buffer(CHUNK_BYTES);
+
+        @Override
+        public void write(int b) {
+            current.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            current.writeBytes(b, off, len);
+        }
+
+        ByteBuf take(boolean last) {
+            ByteBuf chunk = current;
+            current = last ? null : ByteBufAllocator.DEFAULT.buffer(CHUNK_BYTES);
+            return chunk;
+        }
+
+        void release() {
+            if (current != null && current.refCnt() > 0) current.release();
+            current = null;
+        }
+    }
+
+    private final ChunkOutputStream out = new ChunkOutputStream();
+    private final JsonGenerator gen;
+    private final GuildFingerprints.Table previous;
+    private final GuildFingerprints.Table next;
+
+    private GuildSnapshotWriter(boolean gzip, GuildFingerprints.Table previous, GuildFingerprints.Table next)
+            throws IOException {
+        OutputStream target = gzip ? new GZIPOutputStream(out, CHUNK_BYTES) : out;
+        this.gen = JSON.createGenerator(target);
+        this.previous = previous;
+        this.next = next;
+    }
+
+    /**
+     * Corps de la requête ; chaque souscription produit un nouveau snapshot.
+     * {@code next} reçoit les empreintes de tout ce qui est lu ; si {@code previous} est non null,
+     * seules les entités dont l'empreinte a changé sont écrites.
+     */
+    static Flux<ByteBuf> write(Guild guild, boolean gzip,
+                               GuildFingerprints.Table previous, GuildFingerprints.Table next) {
+        return Flux.defer(() -> {
+            GuildSnapshotWriter writer;
+            try {
+                writer = new GuildSnapshotWriter(gzip, previous, next);
+            } catch (IOException e) {
+                return Flux.error(e);
+            }
+            return writer.body(guild);
+        });
+    }
+
+    private Flux<ByteBuf> body(Guild guild) {
+        // Les rôles sont peu nombreux : triés par position avant l'écriture
+        Flux<ByteBuf> head = guild.getRoles()
+                .sort((r1, r2) -> Integer.compare(r1.getRawPosition(), r2.getRawPosition()))
+                .collectList()
+                .flatMapMany(roles -> Mono.justOrEmpty(io(() -> {
+                    writeHead(guild, roles);
+                    return chunk(false);
+                })));
+
+        Flux<ByteBuf> members = guild.getMembers()
+                .handle((member, sink) -> {
+                    ByteBuf chunk = io(() -> {
+                        writeMemberIfChanged(member);
+                        return chunk(false);
+                    });
+                    if (chunk != null) sink.next(chunk);
+                });
+
+        Mono<ByteBuf> tail = Mono.fromCallable(() -> io(() -> {
+            gen.writeEndArray();
+            if (previous != null) writeRemovedMembers();
+            gen.writeEndObject();
+            gen.close(); // termine aussi le flux gzip
+            return chunk(true);
+        }));
+
+        return Flux.concat(head, members, tail)
+                .doOnDiscard(ByteBuf.class, ByteBuf::release)
+                .doFinally(signal -> out.release());
+    }
+
+    private void writeHead(Guild guild, List<Role> roles) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("id", guild.getId().asLong());
+        gen.writeStringField("name", guild.getName());
+        gen.writeNumberField("ownerId", guild.getOwnerId().asLong());
+        if (previous != null) gen.writeBooleanField("delta", true);
+
+        gen.writeArrayFieldStart("roles");
+        for (Role role : roles) {
+            long id = role.getId().asLong();
+            long fingerprint = GuildFingerprints.of(role);
+            next.putRole(id, fingerprint);
+            if (previous == null || previous.role(id) != fingerprint) writeRole(gen, role);
+        }
+        gen.writeEndArray();
+        if (previous != null) {
+            gen.writeArrayFieldStart("removedRoleIds");
+            previous.forEachRoleMissingFrom(next, id -> io(() -> {
+                gen.writeNumber(id);
+                return null;
+            }));
+            gen.writeEndArray();
+        }
+
+        gen.writeArrayFieldStart("members");
+    }
+
+    private void writeMemberIfChanged(Member m) throws IOException {
+        long id = m.getId().asLong();
+        long fingerprint = GuildFingerprints.of(m);
+        next.putMember(id, fingerprint);
+        if (previous == null || previous.member(id) != fingerprint) writeMember(gen, m);
+    }
+
+    private void writeRemovedMembers() throws IOException {
+        gen.writeArrayFieldStart("removedMemberIds");
+        previous.forEachMemberMissingFrom(next, id -> io(() -> {
+            gen.writeNumber(id);
+            return null;
+        }));
+        gen.writeEndArray();
+    }
+
+    static void writeRole(JsonGenerator gen, Role role) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("id", role.getId().asLong());
+        gen.writeStringField("name", role.getName());
+        gen.writeNumberField("color", role.getColor().getRGB());
+        gen.writeNumberField("position", role.getRawPosition());
+        gen.writeNumberField("permissions", role.getPermissions().getRawValue());
+        gen.writeBooleanField("mentionable", role.isMentionable());
+        gen.writeEndObject();
+    }
+
+    // Champ encore présent dans l'export JSON, même si Discord ne le renseigne plus
+    @SuppressWarnings("deprecation")
+    static void writeMember(JsonGenerator gen, Member m) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("id", m.getId().asLong());
+        gen.writeStringField("username", m.getUsername());
+        gen.writeStringField("discriminator", m.getDiscriminator());
+        gen.writeStringField("displayName", m.getDisplayName());
+        gen.writeArrayFieldStart("roleIds");
+        for (var roleId : m.getRoleIds()) gen.writeNumber(roleId.asLong());
+        gen.writeEndArray();
+        if (m.getJoinTime().isPresent()) {
+            gen.writeStringField("joinedAt", m.getJoinTime().get().toString());
+        }
+        gen.writeEndObject();
+    }
+
+    /** Morceau prêt à partir (ou tout le reste si {@code last}), sinon null. */
+    private ByteBuf chunk(boolean last) throws IOException {
+        if (!last) gen.flush();
+        if (!last && out.current.readableBytes() < CHUNK_BYTES) return null;
+        return out.take(last);
+    }
+
+    interface IoSupplier<T> {
+        T get() throws IOException;
+    }
+
+    static <T> T io(IoSupplier<T> action) {
+        try {
+            return action.get();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
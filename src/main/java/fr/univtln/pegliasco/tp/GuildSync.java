@@ -0,0 +1,334 @@
+package fr.univtln.pegliasco.tp;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.event.domain.Event;
+import discord4j.core.event.domain.guild.MemberJoinEvent;
+import discord4j.core.event.domain.guild.MemberLeaveEvent;
+import discord4j.core.event.domain.guild.MemberUpdateEvent;
+import discord4j.core.event.domain.role.RoleCreateEvent;
+import discord4j.core.event.domain.role.RoleDeleteEvent;
+import discord4j.core.event.domain.role.RoleUpdateEvent;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.Role;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.util.retry.Retry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Synchronisation des guildes avec le backend.
+ * <ul>
+ *     <li>/refresh : delta par rapport aux dernières empreintes confirmées, snapshot complet sinon ;</li>
+ *     <li>en continu : les événements membres (arrivée, départ, mise à jour) et rôles (création,
+ *     mise à jour, suppression) sont regroupés par guilde en micro-lots bornés en temps et en taille,
+ *     la dernière valeur de chaque entité l'emportant, puis envoyés sur le endpoint delta ;</li>
+ *     <li>les lots d'une même guilde partent un par un, dans l'ordre, avec reprise sur erreur réseau ou 5xx ;</li>
+ *     <li>endpoint delta absent : synchro continue suspendue dix minutes, puis réessayée
+ *     (ou dès le prochain /refresh) ; les guildes dont un lot est écarté repartiront d'un snapshot complet.</li>
+ * </ul>
+ */
+public final class GuildSync {
+
+    private static final Logger log = LoggerFactory.getLogger(GuildSync.class);
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    // Réponses du endpoint delta qui imposent un snapshot complet (état perdu côté backend)
+    private static final Set<Integer> FULL_SNAPSHOT_REQUIRED = Set.of(409, 410);
+    // Endpoint delta absent (backend pas encore à jour)
+    private static final Set<Integer> DELTA_UNSUPPORTED = Set.of(404, 501);
+
+    private static final int MAX_RETRIES = 5;
+    // Membres relus en parallèle (REST sans cache), l'ordre des événements restant conservé
+    private static final int MEMBER_FETCH_CONCURRENCY = 16;
+    private static final Duration MEMBER_FETCH_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration DELTA_REPROBE = Duration.ofMinutes(10);
+
+    private record Reply(int code, String body) {}
+
+    /** Changement d'une entité ; {@code entity} null = retrait. */
+    private record Change(long guildId, boolean role, long id, Object entity) {}
+
+    /** Erreur passagère (5xx) : le lot est renvoyé. */
+    private static final class RetryableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RetryableException(String message) {
+            super(message);
+        }
+    }
+
+    private final ApiConfig api;
+    private final HttpClient http;
+    private final GuildFingerprints fingerprints;
+    private final Duration batchWindow;
+    private final int maxBatch;
+
+    // Échéance (System.nanoTime) avant laquelle le endpoint delta est considéré absent
+    private volatile long deltaUnsupportedUntil = System.nanoTime();
+
+    public GuildSync(ApiConfig api, HttpClient http, GuildFingerprints fingerprints,
+                     Duration batchWindow, int maxBatch) {
+        this.api = api;
+        this.http = http;
+        this.fingerprints = fingerprints;
+        this.batchWindow = batchWindow;
+        this.maxBatch = maxBatch;
+    }
+
+    /* ---------- /refresh ---------- */
+
+    /** Delta si la guilde a déjà été envoyée, snapshot complet sinon (ou si le backend le demande). */
+    public Mono<String> refresh(Guild guild) {
+        long guildId = guild.getId().asLong();
+        GuildFingerprints.Table previous = fingerprints.get(guildId);
+        // Même si le endpoint delta a été vu absent : /refresh le redemande
+        if (previous == null) {
+            return full(guild);
+        }
+
+        log.info("Refresh incrémental de la guilde {}", guildId);
+        GuildFingerprints.Table next = new GuildFingerprints.Table(previous.roleCount(), previous.memberCount());
+        return post(api.refreshDeltaUrl(guildId), GuildSnapshotWriter.write(guild, api.refreshGzip(), previous, next), api.refreshGzip())
+                .flatMap(reply -> {
+                    if (DELTA_UNSUPPORTED.contains(reply.code())) {
+                        suspendDelta(reply.code());
+                    }
+                    if (FULL_SNAPSHOT_REQUIRED.contains(reply.code()) || DELTA_UNSUPPORTED.contains(reply.code())) {
+                        log.info("Le backend demande un snapshot complet de la guilde {} (HTTP {})",
+                                guildId, reply.code());
+                        fingerprints.invalidate(guildId);
+                        return full(guild);
+                    }
+                    if (reply.code() >= 200 && reply.code() < 300) {
+                        deltaUnsupportedUntil = System.nanoTime();
+                    }
+                    return accept(guildId, next, reply);
+                });
+    }
+
+    private Mono<String> full(Guild guild) {
+        long guildId = guild.getId().asLong();
+        log.info("Refresh complet de la guilde {}", guildId);
+        GuildFingerprints.Table next = new GuildFingerprints.Table();
+        return post(api.refreshGuildUrl(guildId), GuildSnapshotWriter.write(guild, api.refreshGzip(), null, next), api.refreshGzip())
+                .flatMap(reply -> accept(guildId, next, reply));
+    }
+
+    /** Les empreintes ne sont retenues qu'une fois l'envoi accepté : un échec sera renvoyé au prochain refresh. */
+    private Mono<String> accept(long guildId, GuildFingerprints.Table next, Reply reply) {
+        if (reply.code() < 200 || reply.code() >= 300) {
+            return Mono.error(new RuntimeException("HTTP " + reply.code() + " — " + reply.body()));
+        }
+        fingerprints.commit(guildId, next);
+        return Mono.just(reply.body().isBlank() ? "Refresh effectué." : reply.body());
+    }
+
+    /* ---------- Synchronisation continue ---------- */
+
+    /**
+     * Abonnement unique aux événements de la passerelle (ordre de réception conservé, même si
+     * les membres mis à jour sont relus en parallèle). Les lots de guildes différentes partent
+     * en parallèle, ceux d'une même guilde en séquence.
+     */
+    public Mono<Void> listen(GatewayDiscordClient gateway) {
+        return gateway.on(Event.class)
+                .flatMapSequential(this::toChange, MEMBER_FETCH_CONCURRENCY)
+                .groupBy(Change::guildId)
+                .flatMap(changes -> changes
+                        .bufferTimeout(maxBatch, batchWindow)
+                        .onBackpressureBuffer()
+                        .concatMap(batch -> send(gateway, changes.key(), batch)), Integer.MAX_VALUE)
+                .then();
+    }
+
+    private Mono<Change> toChange(Event event) {
+        if (event instanceof MemberJoinEvent e) {
+            return Mono.just(new Change(e.getGuildId().asLong(), false, e.getMember().getId().asLong(), e.getMember()));
+        }
+        if (event instanceof MemberLeaveEvent e) {
+            return Mono.just(new Change(e.getGuildId().asLong(), false, e.getUser().getId().asLong(), null));
+        }
+        if (event instanceof MemberUpdateEvent e) {
+            long guildId = e.getGuildId().asLong();
+            // L'événement ne porte pas l'utilisateur : le membre est relu (cache, sinon REST)
+            return e.getMember()
+                    .timeout(MEMBER_FETCH_TIMEOUT)
+                    .map(m -> new Change(guildId, false, m.getId().asLong(), m))
+                    .onErrorResume(err -> {
+                        log.warn("Membre {} de la guilde {} introuvable : {}", e.getMemberId().asLong(), guildId, err.getMessage());
+                        return Mono.empty();
+                    });
+        }
+        if (event instanceof RoleCreateEvent e) {
+            return Mono.just(new Change(e.getGuildId().asLong(), true, e.getRole().getId().asLong(), e.getRole()));
+        }
+        if (event instanceof RoleUpdateEvent e) {
+            Role role = e.getCurrent();
+            return Mono.just(new Change(role.getGuildId().asLong(), true, role.getId().asLong(), role));
+        }
+        if (event instanceof RoleDeleteEvent e) {
+            return Mono.just(new Change(e.getGuildId().asLong(), true, e.getRoleId().asLong(), null));
+        }
+        return Mono.empty();
+    }
+
+    private Mono<Void> send(GatewayDiscordClient gateway, long guildId, List<Change> batch) {
+        if (System.nanoTime() - deltaUnsupportedUntil < 0) {
+            // Lot écarté : le prochain /refresh de la guilde sera complet
+            fingerprints.invalidate(guildId);
+            return Mono.empty();
+        }
+
+        // Dernière valeur de chaque entité, puis on écarte ce que le backend a déjà
+        Map<Long, Role> roles = new LinkedHashMap<>();
+        Map<Long, Member> members = new LinkedHashMap<>();
+        for (Change c : batch) {
+            if (c.role()) roles.put(c.id(), (Role) c.entity());
+            else members.put(c.id(), (Member) c.entity());
+        }
+        GuildFingerprints.Table table = fingerprints.get(guildId);
+        if (table != null) {
+            roles.entrySet().removeIf(e -> table.role(e.getKey()) == fingerprint(e.getValue()));
+            members.entrySet().removeIf(e -> table.member(e.getKey()) == fingerprint(e.getValue()));
+        }
+        if (roles.isEmpty() && members.isEmpty()) return Mono.empty();
+
+        byte[] body;
+        try {
+            body = delta(guildId, roles, members);
+        } catch (IOException e) {
+            return Mono.error(e);
+        }
+
+        return Mono.defer(() -> post(api.refreshDeltaUrl(guildId), Flux.just(Unpooled.wrappedBuffer(body)), false))
+                .flatMap(reply -> {
+                    if (reply.code() >= 500 && !DELTA_UNSUPPORTED.contains(reply.code())) {
+                        return Mono.error(new RetryableException("HTTP " + reply.code() + " — " + reply.body()));
+                    }
+                    return Mono.just(reply);
+                })
+                .retryWhen(Retry.backoff(MAX_RETRIES, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(30)))
+                .flatMap(reply -> handle(gateway, guildId, roles, members, reply))
+                .onErrorResume(e -> {
+                    // Lot perdu : le prochain /refresh de la guilde sera complet
+                    log.error("Synchro de la guilde {} abandonnée : {}", guildId, e.getMessage());
+                    fingerprints.invalidate(guildId);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> handle(GatewayDiscordClient gateway, long guildId,
+                              Map<Long, Role> roles, Map<Long, Member> members, Reply reply) {
+        int code = reply.code();
+        if (code >= 200 && code < 300) {
+            GuildFingerprints.Table table = fingerprints.get(guildId);
+            if (table != null) {
+                roles.forEach((id, role) -> {
+                    if (role == null) table.removeRole(id);
+                    else table.putRole(id, GuildFingerprints.of(role));
+                });
+                members.forEach((id, member) -> {
+                    if (member == null) table.removeMember(id);
+                    else table.putMember(id, GuildFingerprints.of(member));
+                });
+            }
+            log.debug("Synchro guilde {} : {} rôle(s), {} membre(s)", guildId, roles.size(), members.size());
+            return Mono.empty();
+        }
+        if (DELTA_UNSUPPORTED.contains(code)) {
+            suspendDelta(code);
+            fingerprints.invalidate(guildId);
+            return Mono.empty();
+        }
+        if (FULL_SNAPSHOT_REQUIRED.contains(code)) {
+            log.info("Le backend demande un snapshot complet de la guilde {} (HTTP {})", guildId, code);
+            fingerprints.invalidate(guildId);
+            return gateway.getGuildById(Snowflake.of(guildId)).flatMap(this::full).then();
+        }
+        return Mono.error(new RuntimeException("HTTP " + code + " — " + reply.body()));
+    }
+
+    private void suspendDelta(int code) {
+        deltaUnsupportedUntil = System.nanoTime() + DELTA_REPROBE.toNanos();
+        log.warn("Endpoint delta absent côté backend (HTTP {}) : synchro continue suspendue {} min",
+                code, DELTA_REPROBE.toMinutes());
+    }
+
+    /** Même format que le delta de /refresh, sans les champs de la guilde elle-même. */
+    private static byte[] delta(long guildId, Map<Long, Role> roles, Map<Long, Member> members) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = JSON.createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeNumberField("id", guildId);
+            gen.writeBooleanField("delta", true);
+
+            gen.writeArrayFieldStart("roles");
+            for (Role role : roles.values()) {
+                if (role != null) GuildSnapshotWriter.writeRole(gen, role);
+            }
+            gen.writeEndArray();
+            gen.writeArrayFieldStart("removedRoleIds");
+            for (Map.Entry<Long, Role> e : roles.entrySet()) {
+                if (e.getValue() == null) gen.writeNumber(e.getKey());
+            }
+            gen.writeEndArray();
+
+            gen.writeArrayFieldStart("members");
+            for (Member member : members.values()) {
+                if (member != null) GuildSnapshotWriter.writeMember(gen, member);
+            }
+            gen.writeEndArray();
+            gen.writeArrayFieldStart("removedMemberIds");
+            for (Map.Entry<Long, Member> e : members.entrySet()) {
+                if (e.getValue() == null) gen.writeNumber(e.getKey());
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /** Empreinte d'une entité du lot ; 0 pour un retrait (= absente des empreintes). */
+    private static long fingerprint(Object entity) {
+        if (entity instanceof Role role) return GuildFingerprints.of(role);
+        if (entity instanceof Member member) return GuildFingerprints.of(member);
+        return 0;
+    }
+
+    private Mono<Reply> post(String uri, Flux<ByteBuf> body, boolean gzip) {
+        log.debug("POST vers {}{}", uri, gzip ? " (gzip)" : "");
+        return http
+                .headers(h -> {
+                    h.set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+                    if (gzip) h.set(HttpHeaderNames.CONTENT_ENCODING, "gzip");
+                })
+                .post()
+                .uri(uri)
+                // Corps chunked écrit au fil des membres, sans snapshot en mémoire
+                .send(body)
+                .responseSingle((res, buf) -> {
+                    int code = res.status().code();
+                    return buf.asString().defaultIfEmpty("")
+                            .map(text -> new Reply(code,
+                                    code >= 200 && code < 300 ? text : HttpUtils.shortBody(res, text)));
+                });
+    }
+}
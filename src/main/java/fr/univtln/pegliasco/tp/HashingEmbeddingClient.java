@@ -0,0 +1,44 @@
+package fr.univtln.pegliasco.tp;
+
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Embeddings locaux et déterministes par hachage des termes ({@link TextAnalyzer}) :
+ * pas de sémantique réelle, mais aucun appel réseau. Sert de remplaçant
+ * quand le backend n'expose pas d'embeddings, et pour les essais.
+ */
+public class HashingEmbeddingClient implements EmbeddingClient {
+
+    private final int dim;
+
+    public HashingEmbeddingClient(int dim) {
+        this.dim = dim;
+    }
+
+    @Override
+    public Mono<List<float[]>> embed(List<String> texts) {
+        return Mono.fromCallable(() -> {
+            List<float[]> vectors = new ArrayList<>(texts.size());
+            for (String text : texts) vectors.add(embed(text));
+            return vectors;
+        });
+    }
+
+    @Override
+    public String model() {
+        return "hashing/" + dim;
+    }
+
+    private float[] embed(String text) {
+        float[] v = new float[dim];
+        for (String term : TextAnalyzer.terms(text)) {
+            int h = term.hashCode() * 0x9E3779B9;
+            int index = Math.floorMod(h, dim);
+            v[index] += (h & 0x40000000) == 0 ? 1f : -1f;
+        }
+        return v;
+    }
+}
@@ -0,0 +1,236 @@
+package fr.univtln.pegliasco.tp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/**
+ * Index HNSW (Hierarchical Navigable Small World) pour la recherche approchée
+ * des plus proches voisins, en similarité cosinus sur des vecteurs normalisés.
+ * <ul>
+ *     <li>vecteurs stockés à plat dans un seul {@code float[]} (pas d'objet par vecteur) ;</li>
+ *     <li>un retrait marque le nœud supprimé : il sert encore à la navigation
+ *     mais n'est plus renvoyé (l'appelant reconstruit l'index au besoin).</li>
+ * </ul>
+ * Non thread-safe : l'appelant synchronise.
+ */
+final class HnswIndex {
+
+    private record Candidate(int id, float distance) {}
+
+    private final int dim;
+    private final int m;
+    private final int maxLinks0;
+    private final int efConstruction;
+    private final double levelFactor;
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    private float[] vectors;
+    private int[][][] links = new int[16][][];
+    private int size;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private final BitSet deleted = new BitSet();
+
+    // Marquage des nœuds visités sans réallouer à chaque recherche
+    private int[] visited = new int[16];
+    private int visitEpoch;
+
+    HnswIndex(int dim, int m, int efConstruction) {
+        this.dim = dim;
+        this.m = m;
+        this.maxLinks0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.levelFactor = 1.0 / Math.log(m);
+        this.vectors = new float[16 * dim];
+    }
+
+    int dim() {
+        return dim;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int deletedCount() {
+        return deleted.cardinality();
+    }
+
+    float[] vector(int id) {
+        return Arrays.copyOfRange(vectors, id * dim, (id + 1) * dim);
+    }
+
+    void markDeleted(int id) {
+        deleted.set(id);
+    }
+
+    boolean isDeleted(int id) {
+        return deleted.get(id);
+    }
+
+    /** Ajoute un vecteur (déjà normalisé) et renvoie son identifiant. */
+    int add(float[] vector) {
+        if (vector.length != dim) {
+            throw new IllegalArgumentException("Dimension " + vector.length + " au lieu de " + dim);
+        }
+        int id = size++;
+        ensureCapacity(size);
+        System.arraycopy(vector, 0, vectors, id * dim, dim);
+
+        int level = (int) Math.floor(-Math.log(1.0 - random.nextDouble()) * levelFactor);
+        links[id] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) links[id][l] = new int[0];
+
+        if (entryPoint < 0) {
+            entryPoint = id;
+            maxLevel = level;
+            return id;
+        }
+
+        int ep = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            ep = greedy(vector, ep, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Candidate> found = searchLayer(vector, ep, efConstruction, l);
+            int maxLinks = l == 0 ? maxLinks0 : m;
+            int[] selected = closest(found, m);
+            links[id][l] = selected;
+            for (int neighbor : selected) {
+                connect(neighbor, id, l, maxLinks);
+            }
+            ep = found.get(0).id();
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = id;
+        }
+        return id;
+    }
+
+    /** Identifiants des {@code k} vecteurs les plus proches (hors supprimés), du plus proche au plus lointain. */
+    int[] search(float[] query, int k, int ef) {
+        if (entryPoint < 0) return new int[0];
+        int ep = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            ep = greedy(query, ep, l);
+        }
+        List<Candidate> found = searchLayer(query, ep, Math.max(ef, k), 0);
+        int[] result = new int[Math.min(k, found.size())];
+        int n = 0;
+        for (Candidate c : found) {
+            if (deleted.get(c.id())) continue;
+            result[n++] = c.id();
+            if (n == result.length) break;
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /* ---------- Algorithme ---------- */
+
+    private int greedy(float[] query, int start, int level) {
+        int current = start;
+        float best = distance(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int neighbor : links[current][level]) {
+                float d = distance(query, neighbor);
+                if (d < best) {
+                    best = d;
+                    current = neighbor;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Recherche en faisceau sur une couche ; résultats triés du plus proche au plus lointain. */
+    private List<Candidate> searchLayer(float[] query, int entry, int ef, int level) {
+        int epoch = nextEpoch();
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>((a, b) -> Float.compare(a.distance(), b.distance()));
+        PriorityQueue<Candidate> results = new PriorityQueue<>((a, b) -> Float.compare(b.distance(), a.distance()));
+
+        Candidate first = new Candidate(entry, distance(query, entry));
+        candidates.add(first);
+        results.add(first);
+        visited[entry] = epoch;
+
+        while (!candidates.isEmpty()) {
+            Candidate c = candidates.poll();
+            if (c.distance() > results.peek().distance() && results.size() >= ef) break;
+
+            int[][] nodeLinks = links[c.id()];
+            if (level >= nodeLinks.length) continue;
+            for (int neighbor : nodeLinks[level]) {
+                if (visited[neighbor] == epoch) continue;
+                visited[neighbor] = epoch;
+                float d = distance(query, neighbor);
+                if (results.size() < ef || d < results.peek().distance()) {
+                    Candidate next = new Candidate(neighbor, d);
+                    candidates.add(next);
+                    results.add(next);
+                    if (results.size() > ef) results.poll();
+                }
+            }
+        }
+
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort((a, b) -> Float.compare(a.distance(), b.distance()));
+        return sorted;
+    }
+
+    private void connect(int node, int newNeighbor, int level, int maxLinks) {
+        int[] current = links[node][level];
+        int[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = newNeighbor;
+        if (grown.length <= maxLinks) {
+            links[node][level] = grown;
+            return;
+        }
+        // Trop de liens : on garde les plus proches du nœud
+        float[] base = vector(node);
+        List<Candidate> candidates = new ArrayList<>(grown.length);
+        for (int id : grown) candidates.add(new Candidate(id, distance(base, id)));
+        candidates.sort((a, b) -> Float.compare(a.distance(), b.distance()));
+        links[node][level] = closest(candidates, maxLinks);
+    }
+
+    private static int[] closest(List<Candidate> sorted, int count) {
+        int n = Math.min(count, sorted.size());
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) ids[i] = sorted.get(i).id();
+        return ids;
+    }
+
+    private float distance(float[] query, int id) {
+        int offset = id * dim;
+        float dot = 0f;
+        for (int i = 0; i < dim; i++) {
+            dot += query[i] * vectors[offset + i];
+        }
+        return 1f - dot;
+    }
+
+    private int nextEpoch() {
+        if (visited.length < size) visited = Arrays.copyOf(visited, links.length);
+        if (++visitEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitEpoch = 1;
+        }
+        return visitEpoch;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= links.length) return;
+        int capacity = Math.max(needed, links.length * 2);
+        links = Arrays.copyOf(links, capacity);
+        vectors = Arrays.copyOf(vectors, capacity * dim);
+    }
+}
@@ -0,0 +1,25 @@
+package fr.univtln.pegliasco.tp;
+
+import reactor.netty.http.client.HttpClientResponse;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+public final class HttpUtils {
+
+    private HttpUtils() {}
+
+    public static String encode(String v) {
+        try {
+            return URLEncoder.encode(v, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            return v;
+        }
+    }
+
+    public static String shortBody(HttpClientResponse res, String body) {
+        String ct = res.responseHeaders().get("Content-Type", "");
+        if (ct != null && ct.contains("html")) return "réponse HTML (masquée)";
+        return body.length() > 300 ? body.substring(0, 300) + "...(tronqué)" : body;
+    }
+}
@@ -0,0 +1,402 @@
+package fr.univtln.pegliasco.tp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Répartition des appels au modèle entre les instances du backend ({@code LLM_BACKENDS}) :
+ * <ul>
+ *     <li>choix de l'instance la moins chargée (appels en cours / poids), parmi deux tirées au sort
+ *     selon leur poids ({@code p2c}) ou parmi toutes ({@code least}) ;</li>
+ *     <li>contrôle passif : après {@code LLM_BREAKER_FAILURES} échecs consécutifs (erreur réseau, 5xx,
+ *     timeout), l'instance est écartée pendant {@code LLM_BREAKER_OPEN_SECONDS}, puis un seul appel
+ *     la réessaie ;</li>
+ *     <li>contrôle actif : GET périodique sur {@code LLM_HEALTH_PATH}, une instance qui ne répond pas
+ *     est écartée jusqu'au contrôle suivant réussi ;</li>
+ *     <li>bascule : un appel en échec avant toute réponse est relancé sur une autre instance
+ *     (pas après un timeout, qui a déjà coûté toute l'attente) ;</li>
+ *     <li>doublement : un prompt court ({@code LLM_HEDGE_MAX_CHARS}) sans réponse au-delà du quantile
+ *     {@code LLM_HEDGE_PERCENTILE} de latence de son instance est relancé sur une autre ;
+ *     la première réponse gagne, l'autre appel est annulé.</li>
+ * </ul>
+ * Si toutes les instances sont écartées, l'appel part quand même sur la moins mauvaise (joignable,
+ * écartée depuis le plus longtemps, la moins chargée) : on attend le backend comme avant plutôt
+ * que d'échouer. Une instance seule n'est jamais écartée ni contrôlée.
+ * Le client du modèle ne fournit que l'appel HTTP vers une URL donnée ({@link #call}).
+ */
+final class LlmBalancer {
+
+    private static final Logger log = LoggerFactory.getLogger(LlmBalancer.class);
+
+    private static final Duration HEALTH_TIMEOUT = Duration.ofSeconds(5);
+    // Pas de doublement tant que la latence de l'instance n'est pas connue
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    enum Strategy {
+        P2C, LEAST;
+
+        static Strategy parse(String value) {
+            if (value == null || value.isBlank()) return P2C;
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("LLM_BALANCING invalide : " + value + " (p2c ou least)", e);
+            }
+        }
+    }
+
+    /** Nature de l'appel : la latence mesurée est le premier token en streaming, la réponse complète sinon. */
+    enum Call {
+        SINGLE("single"),
+        STREAM("stream");
+
+        final String label;
+
+        Call(String label) {
+            this.label = label;
+        }
+    }
+
+    /** Réponse HTTP hors 2xx du backend ; seules les 5xx comptent comme un échec de l'instance. */
+    static final class StatusException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        StatusException(int code) {
+            super("HTTP " + code);
+            this.code = code;
+        }
+    }
+
+    private final class Endpoint {
+        final String name;
+        final String url;
+        final String healthUrl;
+        final int weight;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final Metrics.Histogram[] latency = new Metrics.Histogram[Call.values().length];
+        final Metrics.Counter succeeded;
+        final Metrics.Counter failed;
+        volatile boolean healthy = true;
+
+        // Disjoncteur, sous le moniteur
+        private int failures;
+        private boolean open;
+        private long openedAt;
+        private boolean probing;
+
+        Endpoint(ApiConfig.LlmBackend backend, String healthPath, Metrics metrics) {
+            this.name = backend.baseUrl();
+            this.url = backend.ollamaUrl();
+            this.healthUrl = healthPath.startsWith("/") ? name + healthPath : name + "/" + healthPath;
+            this.weight = backend.weight();
+            for (Call call : Call.values()) {
+                latency[call.ordinal()] = metrics.histogram("bot_llm_endpoint_latency_seconds",
+                        "Latence d'une instance du backend : premier token en streaming, réponse complète sinon.",
+                        "endpoint", name, "call", call.label);
+            }
+            this.succeeded = metrics.counter("bot_llm_endpoint_requests_total",
+                    "Appels au modèle par instance du backend et par issue", "endpoint", name, "result", "ok");
+            this.failed = metrics.counter("bot_llm_endpoint_requests_total",
+                    "Appels au modèle par instance du backend et par issue", "endpoint", name, "result", "error");
+        }
+
+        /** Appels en cours rapportés au poids, en comparaison croisée pour rester en entiers. */
+        boolean lessLoadedThan(Endpoint other) {
+            return (long) outstanding.get() * other.weight < (long) other.outstanding.get() * weight;
+        }
+
+        synchronized boolean available(long now) {
+            if (!healthy) return false;
+            return !open || (!probing && now - openedAt >= breakerOpenNanos);
+        }
+
+        /** Instance à préférer quand toutes sont écartées. */
+        boolean betterFallbackThan(Endpoint other, long now) {
+            if (healthy != other.healthy) return healthy;
+            long mine = openFor(now);
+            long theirs = other.openFor(now);
+            if (mine != theirs) return mine > theirs;
+            return lessLoadedThan(other);
+        }
+
+        /** Depuis combien de temps l'instance est écartée ; {@link Long#MAX_VALUE} si elle ne l'est pas (préférée). */
+        private synchronized long openFor(long now) {
+            return open ? now - openedAt : Long.MAX_VALUE;
+        }
+
+        /** Comme {@link #available}, mais réserve l'appel d'essai d'une instance écartée. */
+        synchronized boolean acquire(long now) {
+            if (!available(now)) return false;
+            if (open) probing = true;
+            outstanding.incrementAndGet();
+            return true;
+        }
+
+        synchronized void onSuccess() {
+            succeeded.inc();
+            if (open) log.info("Backend {} rétabli", name);
+            open = false;
+            probing = false;
+            failures = 0;
+        }
+
+        synchronized void onFailure(Throwable e) {
+            failed.inc();
+            failures++;
+            if (probing || (!open && breakerFailures > 0 && failures >= breakerFailures)) {
+                log.warn("Backend {} écarté pendant {} s après {} échec(s) : {}",
+                        name, breakerOpenNanos / 1_000_000_000L, failures, e.toString());
+                open = true;
+                openedAt = System.nanoTime();
+                probing = false;
+            }
+        }
+
+        /** Appel annulé (doublement perdu, interaction abandonnée) : ni succès ni échec. */
+        synchronized void onCancel() {
+            probing = false;
+        }
+
+        void health(boolean up) {
+            if (up == healthy) return;
+            healthy = up;
+            if (up) {
+                log.info("Backend {} de nouveau joignable", name);
+            } else {
+                log.warn("Backend {} injoignable ({}), écarté jusqu'au prochain contrôle", name, healthUrl);
+            }
+        }
+
+        synchronized boolean up() {
+            return healthy && !open;
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final Strategy strategy;
+    private final int breakerFailures;
+    private final long breakerOpenNanos;
+    private final Duration healthInterval;
+    private final int hedgeMaxChars;
+    private final double hedgePercentile;
+    private final HttpClient health;
+    private final Metrics.Counter failovers;
+    private final Metrics.Counter hedges;
+
+    /** {@code health} : client des contrôles actifs, sur un pool distinct de celui des appels au modèle. */
+    LlmBalancer(ApiConfig api, HttpClient health, Metrics metrics) {
+        this.strategy = Strategy.parse(api.llmBalancing());
+        // Une instance seule n'a pas de remplaçante : elle n'est jamais écartée
+        this.breakerFailures = api.llmBackends().size() > 1 ? api.llmBreakerFailures() : 0;
+        this.breakerOpenNanos = api.llmBreakerOpen().toNanos();
+        this.healthInterval = api.llmHealthInterval();
+        this.hedgeMaxChars = api.llmHedgeMaxChars();
+        this.hedgePercentile = api.llmHedgePercentile();
+        this.health = health.responseTimeout(HEALTH_TIMEOUT);
+        List<Endpoint> list = new ArrayList<>();
+        for (ApiConfig.LlmBackend backend : api.llmBackends()) {
+            list.add(new Endpoint(backend, api.llmHealthPath(), metrics));
+        }
+        this.endpoints = List.copyOf(list);
+        this.failovers = metrics.counter("bot_llm_failovers_total",
+                "Appels au modèle relancés sur une autre instance après un échec");
+        this.hedges = metrics.counter("bot_llm_hedges_total",
+                "Prompts doublés sur une autre instance faute de réponse à temps");
+        metrics.gauges("bot_llm_endpoint_outstanding", "Appels en cours par instance du backend", sampler -> {
+            for (Endpoint e : endpoints) sampler.sample(e.outstanding.get(), "endpoint", e.name);
+        });
+        metrics.gauges("bot_llm_endpoint_up", "Instance du backend utilisable (joignable, non écartée)", sampler -> {
+            for (Endpoint e : endpoints) sampler.sample(e.up() ? 1 : 0, "endpoint", e.name);
+        });
+    }
+
+    Strategy strategy() {
+        return strategy;
+    }
+
+    int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Appel au modèle sur l'instance choisie ; {@code request} reçoit l'URL de l'instance et doit
+     * porter son propre timeout. Échoue aussitôt si aucune instance n'est utilisable.
+     */
+    <T> Flux<T> call(Call call, int promptChars, Function<String, Flux<T>> request) {
+        return Flux.defer(() -> {
+            Set<Endpoint> tried = ConcurrentHashMap.newKeySet();
+            Endpoint first = pick(tried, true);
+            if (first == null) return Flux.error(new IllegalStateException("Aucune instance du backend disponible"));
+            Flux<T> primary = attempt(first, tried, call, request);
+            Duration delay = hedgeDelay(first, call, promptChars);
+            if (delay == null) return primary;
+            Flux<T> hedge = Mono.delay(delay).flatMapMany(tick -> {
+                // Doubler sur une instance écartée n'apporterait rien
+                Endpoint second = pick(tried, false);
+                if (second == null) return Flux.empty();
+                hedges.inc();
+                return attempt(second, tried, call, request);
+            });
+            // Si les deux échouent, l'erreur de l'appel principal est remontée telle quelle
+            return Flux.firstWithValue(primary, hedge)
+                    .onErrorMap(NoSuchElementException.class, e -> {
+                        List<Throwable> errors = Exceptions.unwrapMultiple(e.getCause());
+                        return errors.isEmpty() || errors.get(0) == null ? e : errors.get(0);
+                    });
+        });
+    }
+
+    /** Contrôle actif des instances, à souscrire pour la durée de vie du bot. */
+    Mono<Void> healthChecks() {
+        if (endpoints.size() < 2 || healthInterval.isZero() || healthInterval.isNegative()) return Mono.empty();
+        return Flux.interval(healthInterval)
+                .onBackpressureDrop()
+                .concatMap(tick -> Flux.fromIterable(endpoints).flatMap(this::check).then())
+                .then();
+    }
+
+    private Mono<Void> check(Endpoint endpoint) {
+        return health.get()
+                .uri(endpoint.healthUrl)
+                .responseSingle((res, body) -> body.then(Mono.just(res.status().code())))
+                .timeout(HEALTH_TIMEOUT)
+                .map(code -> code < 500)
+                .onErrorReturn(false)
+                .doOnNext(endpoint::health)
+                .then();
+    }
+
+    /** Un appel ; en échec avant toute réponse, relancé sur une autre instance non encore essayée. */
+    private <T> Flux<T> attempt(Endpoint endpoint, Set<Endpoint> tried, Call call, Function<String, Flux<T>> request) {
+        return Flux.defer(() -> {
+            AtomicBoolean answered = new AtomicBoolean();
+            return track(endpoint, call, request.apply(endpoint.url))
+                    .doOnNext(v -> answered.set(true))
+                    .onErrorResume(e -> !answered.get() && failure(e) && !(e instanceof TimeoutException), e -> {
+                        Endpoint next = pick(tried, true);
+                        if (next == null) return Flux.error(e);
+                        failovers.inc();
+                        log.warn("Appel au modèle en échec sur {} ({}), relancé sur {}", endpoint.name, e.getMessage(), next.name);
+                        return attempt(next, tried, call, request);
+                    });
+        });
+    }
+
+    /** Charge, latence et issue de l'appel pour l'instance (déjà réservée par {@link #pick}). */
+    private <T> Flux<T> track(Endpoint endpoint, Call call, Flux<T> flux) {
+        long start = System.nanoTime();
+        AtomicBoolean first = new AtomicBoolean();
+        return flux
+                .doOnNext(v -> {
+                    if (first.compareAndSet(false, true)) {
+                        endpoint.latency[call.ordinal()].record(System.nanoTime() - start);
+                    }
+                })
+                .doOnComplete(endpoint::onSuccess)
+                .doOnError(e -> {
+                    if (failure(e)) endpoint.onFailure(e);
+                    else endpoint.onSuccess();
+                })
+                .doOnCancel(endpoint::onCancel)
+                .doFinally(signal -> endpoint.outstanding.decrementAndGet());
+    }
+
+    /**
+     * Instance utilisable la moins chargée, hors {@code tried} ; réservée et ajoutée à {@code tried}.
+     * Sans instance utilisable, la moins mauvaise si {@code fallback}, sinon null.
+     */
+    private Endpoint pick(Set<Endpoint> tried, boolean fallback) {
+        for (int i = 0; i < endpoints.size(); i++) {
+            long now = System.nanoTime();
+            List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+            for (Endpoint e : endpoints) {
+                if (!tried.contains(e) && e.available(now)) candidates.add(e);
+            }
+            if (candidates.isEmpty()) return fallback ? leastBad(tried) : null;
+            Endpoint chosen = strategy == Strategy.LEAST ? leastLoaded(candidates) : twoChoices(candidates);
+            // Un autre appel a pu prendre l'essai d'une instance écartée entre-temps
+            if (chosen.acquire(now)) {
+                tried.add(chosen);
+                return chosen;
+            }
+        }
+        return null;
+    }
+
+    private Endpoint leastBad(Set<Endpoint> tried) {
+        long now = System.nanoTime();
+        Endpoint best = null;
+        for (Endpoint e : endpoints) {
+            if (!tried.contains(e) && (best == null || e.betterFallbackThan(best, now))) best = e;
+        }
+        if (best == null) return null;
+        best.outstanding.incrementAndGet();
+        tried.add(best);
+        return best;
+    }
+
+    private static Endpoint leastLoaded(List<Endpoint> candidates) {
+        // Départ au hasard : les égalités ne favorisent pas toujours la première instance
+        int offset = ThreadLocalRandom.current().nextInt(candidates.size());
+        Endpoint best = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            Endpoint e = candidates.get((offset + i) % candidates.size());
+            if (best == null || e.lessLoadedThan(best)) best = e;
+        }
+        return best;
+    }
+
+    private static Endpoint twoChoices(List<Endpoint> candidates) {
+        if (candidates.size() == 1) return candidates.get(0);
+        Endpoint a = weighted(candidates, null);
+        Endpoint b = weighted(candidates, a);
+        return b.lessLoadedThan(a) ? b : a;
+    }
+
+    /** Tirage proportionnel au poids, sans {@code excluded}. */
+    private static Endpoint weighted(List<Endpoint> candidates, Endpoint excluded) {
+        int total = 0;
+        for (Endpoint e : candidates) {
+            if (e != excluded) total += e.weight;
+        }
+        int target = ThreadLocalRandom.current().nextInt(total);
+        for (Endpoint e : candidates) {
+            if (e == excluded) continue;
+            target -= e.weight;
+            if (target < 0) return e;
+        }
+        throw new IllegalStateException("Tirage hors des poids");
+    }
+
+    /** Délai avant doublement ; null si le prompt est trop long, l'instance seule ou sa latence inconnue. */
+    private Duration hedgeDelay(Endpoint primary, Call call, int promptChars) {
+        if (hedgeMaxChars <= 0 || promptChars > hedgeMaxChars || endpoints.size() < 2) return null;
+        Metrics.Histogram latency = primary.latency[call.ordinal()];
+        if (latency.count() < HEDGE_MIN_SAMPLES) return null;
+        return Duration.ofNanos((long) (latency.quantile(hedgePercentile) * 1e9));
+    }
+
+    /** Ce qui met en cause l'instance : tout sauf une réponse HTTP sous 500. */
+    private static boolean failure(Throwable e) {
+        return !(e instanceof StatusException status) || status.code >= 500;
+    }
+}
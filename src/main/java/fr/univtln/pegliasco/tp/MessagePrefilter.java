@@ -0,0 +1,103 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.discordjson.json.MessageData;
+import discord4j.discordjson.json.UserData;
+
+import java.util.List;
+
+/**
+ * Tri des messages reçus avant tout pipeline réactif : presque tous sont ignorés,
+ * la décision est donc prise sur les données brutes du message ({@link MessageData}),
+ * sans créer d'objet ni copier le contenu. Seuls les messages acceptés passent par {@link #prompt(String)}.
+ * <p>
+ * Règles, dans l'ordre (la première qui rejette est comptée dans {@code bot_messages_total{result}}) :
+ * auteur = le bot ({@code self}), bot non mentionné ({@code no_mention}), contenu JSON ({@code json}),
+ * rien d'autre que la mention ({@code empty}) ; sinon {@code accepted}.
+ */
+final class MessagePrefilter {
+
+    enum Rule {
+        SELF("self"),
+        NO_MENTION("no_mention"),
+        JSON("json"),
+        EMPTY("empty"),
+        ACCEPTED("accepted");
+
+        final String label;
+
+        Rule(String label) {
+            this.label = label;
+        }
+    }
+
+    private final long selfId;
+    private final String mention;
+    private final String nicknameMention;
+    private final Metrics.Counter[] counters = new Metrics.Counter[Rule.values().length];
+
+    MessagePrefilter(Metrics metrics, long selfId) {
+        this.selfId = selfId;
+        this.mention = "<@" + selfId + ">";
+        this.nicknameMention = "<@!" + selfId + ">";
+        for (Rule rule : Rule.values()) {
+            counters[rule.ordinal()] = metrics.counter("bot_messages_total",
+                    "Messages reçus, par règle du préfiltre qui les a écartés (ou accepted)", "result", rule.label);
+        }
+    }
+
+    /** Le message contient-il des pièces jointes à indexer (quel que soit son auteur) ? */
+    static boolean hasAttachments(MessageData data) {
+        return !data.attachments().isEmpty();
+    }
+
+    /** Applique les règles et compte le résultat ; {@link Rule#ACCEPTED} si le bot doit répondre. */
+    Rule classify(MessageData data) {
+        Rule rule = evaluate(data);
+        counters[rule.ordinal()].inc();
+        return rule;
+    }
+
+    private Rule evaluate(MessageData data) {
+        if (data.author().id().asLong() == selfId) return Rule.SELF;
+        if (!mentionsSelf(data.mentions())) return Rule.NO_MENTION;
+        String content = data.content();
+        int first = skipWhitespace(content, 0);
+        if (first < content.length() && content.charAt(first) == '{') return Rule.JSON;
+        return hasText(content, first) ? Rule.ACCEPTED : Rule.EMPTY;
+    }
+
+    /** Contenu du message sans la mention du bot, à n'appeler que sur un message accepté. */
+    String prompt(String content) {
+        return content.replace(mention, "").replace(nicknameMention, "").trim();
+    }
+
+    private boolean mentionsSelf(List<? extends UserData> mentions) {
+        for (int i = 0; i < mentions.size(); i++) {
+            if (mentions.get(i).id().asLong() == selfId) return true;
+        }
+        return false;
+    }
+
+    /** Reste-t-il autre chose que des blancs une fois les mentions du bot retirées ? */
+    private boolean hasText(String content, int from) {
+        int i = from;
+        while (i < content.length()) {
+            if (content.startsWith(mention, i)) {
+                i += mention.length();
+            } else if (content.startsWith(nicknameMention, i)) {
+                i += nicknameMention.length();
+            } else if (Character.isWhitespace(content.charAt(i))) {
+                i++;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int skipWhitespace(String s, int from) {
+        int i = from;
+        while (i < s.length() && s.charAt(i) <= ' ') i++;
+        return i;
+    }
+}
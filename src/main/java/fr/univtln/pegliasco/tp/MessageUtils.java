@@ -6,6 +6,8 @@ import java.util.List;
 public final class MessageUtils {
 
     private static final int DISCORD_LIMIT = 2000;
+    /** On ne remonte pas plus loin pour chercher une coupure propre, pour éviter un bloc minuscule. */
+    private static final int LOOKBACK = 250;
 
     private MessageUtils() {}
 
@@ -13,69 +15,283 @@ public final class MessageUtils {
         List<String> parts = new ArrayList<>();
         if (text == null || text.isEmpty()) return parts;
 
-        int start = 0;
-        final int n = text.length();
+        Splitter splitter = new Splitter();
+        parts.addAll(splitter.feed(text));
+        // 🔹 Le DERNIER chunk part tel quel (pas besoin de chercher un joli cut)
+        String last = splitter.finish();
+        if (last != null) parts.add(last);
+        return parts;
+    }
+
+    /**
+     * Découpage incrémental en messages Discord : le texte arrive par fragments
+     * et chaque partie est émise dès qu'elle est complète.
+     * <ul>
+     *     <li>coupure propre : saut de ligne, sinon espace, à moins de {@value #LOOKBACK} caractères de la limite ;</li>
+     *     <li>jamais au milieu d'une paire surrogée, d'un graphème (accent combinant, séquence emoji ZWJ,
+     *     modificateur, drapeau), d'une séquence d'échappement ou d'une clôture {@code ```} ;</li>
+     *     <li>un bloc de code ouvert en fin de partie est refermé, puis rouvert (avec son langage)
+     *     au début de la suivante.</li>
+     * </ul>
+     * Avec {@link #escaping(boolean)}, l'échappement Markdown est fait dans la même passe, directement
+     * dans le tampon : les caractères d'échappement comptent dans la limite de chaque partie.
+     * Le tampon interne est réutilisé : seules les parties émises sont allouées. Non thread-safe.
+     */
+    public static final class Splitter {
+
+        private static final String FENCE = "```";
+        private static final int MAX_LANGUAGE = 20;
+        private static final int ZWJ = 0x200D;
+        /** Place réservée dans chaque partie à la clôture éventuelle d'un bloc de code ("\n```"). */
+        private static final int CLOSING = FENCE.length() + 1;
+
+        private final int limit;
+        private final boolean escape;
+        private final boolean keepCode;
+        private final StringBuilder pending = new StringBuilder();
+        private final StringBuilder out = new StringBuilder();
+        /** Bloc de code ouvert à la fin du texte déjà émis, et sa ligne d'ouverture. */
+        private boolean open;
+        private String opener = FENCE;
+        /** Préfixe de la prochaine partie : ouverture du bloc de code en cours, ou vide. */
+        private String reopen = "";
 
-        while (start < n) {
-            int hardEnd = Math.min(start + DISCORD_LIMIT, n);
-            int cut;
+        // État de l'échappement à la fin du texte reçu : une série d'accents graves peut
+        // s'étendre sur plusieurs fragments, elle n'est interprétée qu'une fois terminée.
+        private int ticks;
+        private boolean inFence;
+        private boolean inInline;
 
-            // 🔹 Si c'est le DERNIER chunk, on envoie tout (pas besoin de chercher un joli cut)
-            if (hardEnd == n) {
-                cut = n;
+        public Splitter() {
+            this(DISCORD_LIMIT, false, false);
+        }
+
+        Splitter(int limit, boolean escape, boolean keepCode) {
+            this.limit = limit;
+            this.escape = escape;
+            this.keepCode = keepCode;
+        }
+
+        /**
+         * Découpeur qui échappe aussi le Markdown ({@link #escapeDiscordMarkdown(String)}).
+         * Si {@code keepCode}, le contenu des blocs {@code ```} et des spans {@code `} (fermés
+         * au plus tard en fin de ligne) est laissé intact, délimiteurs compris.
+         */
+        public static Splitter escaping(boolean keepCode) {
+            return new Splitter(DISCORD_LIMIT, true, keepCode);
+        }
+
+        /** Ajoute un fragment ; renvoie les parties devenues complètes (souvent aucune). */
+        public List<String> feed(CharSequence fragment) {
+            if (fragment == null || fragment.isEmpty()) return List.of();
+            if (escape) {
+                escapeInto(fragment);
             } else {
-                // 🔹 Sinon on cherche un point de coupure "propre" proche de la limite
-                cut = findBestCut(text, start, hardEnd);
-                if (cut == -1) {
-                    cut = hardEnd;
+                pending.append(fragment);
+            }
+            List<String> parts = List.of();
+            while (!isEmpty() && reopen.length() + pending.length() + ticks > limit - CLOSING) {
+                if (parts.isEmpty()) parts = new ArrayList<>(1);
+                parts.add(cut());
+            }
+            return parts;
+        }
+
+        /**
+         * Partie en cours telle qu'elle serait envoyée maintenant ; vide s'il n'y a rien.
+         * Un bloc de code encore ouvert est refermé, comme en fin de partie.
+         */
+        public String preview() {
+            if (isEmpty()) return "";
+            out.setLength(0);
+            out.append(reopen).append(pending);
+            for (int i = 0; i < ticks; i++) out.append('`');
+            if (endsInFence(out)) close(out);
+            return out.toString();
+        }
+
+        /** Dernière partie (null s'il n'y a rien) ; le découpeur repart à vide. */
+        public String finish() {
+            String last = isEmpty() ? null : preview();
+            pending.setLength(0);
+            open = false;
+            opener = FENCE;
+            reopen = "";
+            ticks = 0;
+            inFence = false;
+            inInline = false;
+            return last;
+        }
+
+        public boolean isEmpty() {
+            return pending.isEmpty() && ticks == 0;
+        }
+
+        private void escapeInto(CharSequence fragment) {
+            for (int i = 0; i < fragment.length(); i++) {
+                char c = fragment.charAt(i);
+                if (keepCode && c == '`') {
+                    ticks++;
+                    continue;
                 }
+                if (ticks > 0) writeTicks();
+                if (c == '\n') inInline = false;
+                if (!inFence && !inInline && needsEscape(c)) pending.append('\\');
+                pending.append(c);
             }
+        }
 
-            // Sécurité anti-emoji (eviter de couper une paire surrogée)
-            if (cut < n && cut > start && Character.isLowSurrogate(text.charAt(cut - 1))) {
-                cut--;
+        /** Série d'accents graves terminée : délimiteur de code, recopié tel quel. */
+        private void writeTicks() {
+            if (inFence) {
+                if (ticks >= FENCE.length()) inFence = false;
+            } else if (inInline) {
+                inInline = false;
+            } else if (ticks >= FENCE.length()) {
+                inFence = true;
+            } else {
+                inInline = true;
             }
+            for (; ticks > 0; ticks--) pending.append('`');
+        }
+
+        private String cut() {
+            int budget = limit - reopen.length() - CLOSING;
+            // Une série d'accents graves en attente doit être émise : elle est interprétée telle quelle
+            if (ticks > 0 && pending.length() < budget) writeTicks();
+            int end = findCut(Math.min(budget, pending.length()));
+            track(0, end);
 
-            parts.add(text.substring(start, cut));
-            start = cut;
+            out.setLength(0);
+            out.append(reopen).append(pending, 0, end);
+            if (open) close(out);
+            pending.delete(0, end);
+            reopen = open ? opener + "\n" : "";
+            return out.toString();
         }
 
-        return parts;
-    }
+        private int findCut(int hardEnd) {
+            int cut = hardEnd;
+            int minPreferred = Math.max(1, hardEnd - LOOKBACK);
+            int space = -1;
+            for (int i = hardEnd - 1; i >= minPreferred; i--) {
+                char c = pending.charAt(i);
+                if (c == '\n') {
+                    cut = i + 1;
+                    space = -1;
+                    break;
+                }
+                if (c == ' ' && space < 0) space = i;
+            }
+            if (space >= 0) cut = space + 1;
 
-    /**
-     * Cherche un endroit propre pour couper :
-     * - un saut de ligne proche de la limite
-     * - sinon un espace proche de la limite
-     * On ne remonte pas de plus de 250 caractères pour éviter de faire un bloc minuscule.
-     */
-    private static int findBestCut(String text, int start, int hardEnd) {
-        int minPreferred = Math.max(start, hardEnd - 250);
+            // On recule jusqu'à une frontière de graphème (sans trop s'éloigner)
+            for (int i = cut; i > Math.max(1, cut - LOOKBACK); i--) {
+                if (isBoundary(pending, i)) return i;
+            }
+            boolean splitsPair = hardEnd < pending.length() && Character.isLowSurrogate(pending.charAt(hardEnd));
+            return splitsPair ? hardEnd - 1 : hardEnd;
+        }
+
+        private static void close(StringBuilder part) {
+            if (part.charAt(part.length() - 1) != '\n') part.append('\n');
+            part.append(FENCE);
+        }
+
+        /** Un bloc de code reste-t-il ouvert à la fin de la partie ? Mêmes règles que {@link #track}. */
+        private static boolean endsInFence(CharSequence part) {
+            boolean inBlock = false;
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (c == '\\' && !inBlock) {
+                    i++;
+                } else if (c == '`' && i + 2 < part.length() && part.charAt(i + 1) == '`' && part.charAt(i + 2) == '`') {
+                    inBlock = !inBlock;
+                    i += 2;
+                }
+            }
+            return inBlock;
+        }
+
+        /** Suit l'ouverture et la fermeture des blocs de code sur le texte émis. */
+        private void track(int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = pending.charAt(i);
+                if (c == '\\' && !open) {
+                    i++; // caractère échappé
+                } else if (c == '`' && i + 2 < to && pending.charAt(i + 1) == '`' && pending.charAt(i + 2) == '`') {
+                    open = !open;
+                    i += 2;
+                    if (open) opener = opener(i + 1, to);
+                }
+            }
+        }
 
-        // 1) essayer un saut de ligne
-        int nl = text.lastIndexOf('\n', hardEnd - 1);
-        if (nl >= minPreferred) {
-            return nl + 1;
+        /** "```" suivi du langage s'il est seul sur la ligne d'ouverture (```java). */
+        private String opener(int from, int to) {
+            int i = from;
+            while (i < to && i - from < MAX_LANGUAGE && isLanguageChar(pending.charAt(i))) i++;
+            if (i == from || i >= to || pending.charAt(i) != '\n') return FENCE;
+            return FENCE + pending.substring(from, i);
         }
 
-        // 2) sinon, essayer un espace
-        int space = text.lastIndexOf(' ', hardEnd - 1);
-        if (space >= minPreferred) {
-            return space + 1;
+        private static boolean isLanguageChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '+' || c == '#' || c == '-' || c == '_' || c == '.';
+        }
+
+        /** Vrai si l'on peut couper juste avant l'indice {@code i}. */
+        static boolean isBoundary(CharSequence s, int i) {
+            if (i <= 0 || i >= s.length()) return true;
+            char prev = s.charAt(i - 1);
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(prev) && Character.isLowSurrogate(c)) return false;
+            if (prev == '\r' && c == '\n') return false;
+            if (prev == '`' && c == '`') return false;
+            if (prev == '\\' || prev == ZWJ) return false;
+
+            int cp = Character.codePointAt(s, i);
+            if (cp == ZWJ
+                    || (cp >= 0xFE00 && cp <= 0xFE0F)      // sélecteurs de variante
+                    || (cp >= 0x1F3FB && cp <= 0x1F3FF)    // couleurs de peau
+                    || (cp >= 0xE0020 && cp <= 0xE007F)) { // étiquettes (drapeaux régionaux)
+                return false;
+            }
+            int type = Character.getType(cp);
+            if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                    || type == Character.COMBINING_SPACING_MARK) {
+                return false;
+            }
+            if (isRegionalIndicator(cp)) {
+                // Un drapeau = deux indicateurs régionaux : on ne coupe qu'après un nombre pair
+                int count = 0;
+                for (int j = i; j >= 2 && isRegionalIndicator(Character.codePointBefore(s, j)); j -= 2) count++;
+                return count % 2 == 0;
+            }
+            return true;
         }
 
-        // rien trouvé de satisfaisant
-        return -1;
+        private static boolean isRegionalIndicator(int cp) {
+            return cp >= 0x1F1E6 && cp <= 0x1F1FF;
+        }
     }
 
+    /** Échappement minimal pour lisibilité, en une passe ; le texte est renvoyé tel quel s'il n'y a rien à échapper. */
     public static String escapeDiscordMarkdown(String text) {
         if (text == null) return "";
-        // Échappement minimal pour lisibilité
-        return text
-                .replace("\\", "\\\\")
-                .replace("`", "\\`")
-                .replace("*", "\\*")
-                .replace("_", "\\_")
-                .replace("~", "\\~");
+        int first = 0;
+        while (first < text.length() && !needsEscape(text.charAt(first))) first++;
+        if (first == text.length()) return text;
+
+        StringBuilder sb = new StringBuilder(text.length() + 16).append(text, 0, first);
+        for (int i = first; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (needsEscape(c)) sb.append('\\');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static boolean needsEscape(char c) {
+        return c == '\\' || c == '`' || c == '*' || c == '_' || c == '~';
     }
 }
@@ -0,0 +1,249 @@
+package fr.univtln.pegliasco.tp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Registre de métriques en mémoire, exporté au format texte Prometheus ({@link #scrape()}).
+ * <ul>
+ *     <li>les instruments sont créés une fois (au démarrage, ou à l'enregistrement d'une commande)
+ *     puis gardés par l'appelant : l'enregistrement d'une valeur est sans verrou ni allocation ;</li>
+ *     <li>histogrammes à la HDR : seaux log-linéaires en microsecondes (8 sous-seaux par puissance
+ *     de deux, soit ~12 % de précision relative), exportés sur des bornes fixes en secondes ;</li>
+ *     <li>les jauges et compteurs « fonction » sont lus au moment de l'export.</li>
+ * </ul>
+ * Les labels sont donnés par paires : {@code histogram("x", "...", "command", "qa", "stage", "defer")}.
+ */
+public final class Metrics {
+
+    private static final double[] EXPORTED_BOUNDS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120
+    };
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+    }
+
+    /** Durées, enregistrées en nanosecondes et conservées à la microseconde. */
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        // Jusqu'à 2^40 µs (~12 jours) ; au-delà, tout tombe dans le dernier seau
+        private static final int BUCKETS = (40 - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sumMicros = new LongAdder();
+
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos / 1_000);
+            counts.incrementAndGet(index(micros));
+            sumMicros.add(micros);
+        }
+
+        public long count() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+            return total;
+        }
+
+        /** Quantile approché (borne haute du seau), en secondes ; 0 si rien n'a été enregistré. */
+        public double quantile(double q) {
+            long[] snapshot = snapshot();
+            long total = 0;
+            for (long c : snapshot) total += c;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(1, rank)) return upperBound(i) / 1e6;
+            }
+            return upperBound(BUCKETS - 1) / 1e6;
+        }
+
+        static int index(long micros) {
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int shift = exponent - SUB_BITS;
+            int index = (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+            return Math.min(index, BUCKETS - 1);
+        }
+
+        /** Borne haute (exclue) du seau, en microsecondes. */
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) return index + 1;
+            int shift = index / SUB_BUCKETS - 1;
+            int sub = index % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub + 1) << shift;
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) snapshot[i] = counts.get(i);
+            return snapshot;
+        }
+
+        private void write(StringBuilder out, String name, String labels) {
+            long[] snapshot = snapshot();
+            long cumulative = 0;
+            int bucket = 0;
+            for (double bound : EXPORTED_BOUNDS) {
+                long boundMicros = (long) (bound * 1e6);
+                while (bucket < BUCKETS && upperBound(bucket) <= boundMicros) cumulative += snapshot[bucket++];
+                sample(out, name + "_bucket", join(labels, "le=\"" + bound + "\""), cumulative);
+            }
+            while (bucket < BUCKETS) cumulative += snapshot[bucket++];
+            sample(out, name + "_bucket", join(labels, "le=\"+Inf\""), cumulative);
+            sample(out, name + "_sum", labels, sumMicros.sum() / 1e6);
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+
+    /** Reçoit les échantillons d'une famille dont les labels ne sont connus qu'à l'export. */
+    public interface Sampler {
+        void sample(double value, String... labels);
+    }
+
+    private static final class Family {
+        final String name;
+        final String type;
+        final String help;
+        final Map<String, Object> children = new LinkedHashMap<>();
+        final List<Consumer<Sampler>> collectors = new ArrayList<>();
+
+        Family(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    // Protégé par le moniteur de l'instance : n'est touché qu'à l'enregistrement et à l'export
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help, String... labels) {
+        return child(name, "counter", help, labels, Counter.class, Counter::new);
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return child(name, "histogram", help, labels, Histogram.class, Histogram::new);
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        child(name, "gauge", help, labels, DoubleSupplier.class, () -> value);
+    }
+
+    /** Compteur tenu ailleurs (statistiques Caffeine, etc.), lu à l'export. */
+    public void counterFunction(String name, String help, DoubleSupplier value, String... labels) {
+        child(name, "counter", help, labels, DoubleSupplier.class, () -> value);
+    }
+
+    /** Jauges dont les labels varient (un échantillon par salon, par pool...). */
+    public synchronized void gauges(String name, String help, Consumer<Sampler> collector) {
+        family(name, "gauge", help).collectors.add(collector);
+    }
+
+    /** Toutes les métriques au format texte Prometheus 0.0.4. */
+    public String scrape() {
+        List<Family> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(families.values());
+        }
+        StringBuilder out = new StringBuilder(8 * 1024);
+        for (Family family : snapshot) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            List<Map.Entry<String, Object>> children;
+            List<Consumer<Sampler>> collectors;
+            synchronized (this) {
+                children = new ArrayList<>(family.children.entrySet());
+                collectors = new ArrayList<>(family.collectors);
+            }
+            for (Map.Entry<String, Object> child : children) {
+                Object metric = child.getValue();
+                if (metric instanceof Histogram histogram) {
+                    histogram.write(out, family.name, child.getKey());
+                } else if (metric instanceof Counter counter) {
+                    sample(out, family.name, child.getKey(), counter.value());
+                } else if (metric instanceof DoubleSupplier supplier) {
+                    sample(out, family.name, child.getKey(), supplier.getAsDouble());
+                }
+            }
+            for (Consumer<Sampler> collector : collectors) {
+                collector.accept((value, labels) -> sample(out, family.name, labels(labels), value));
+            }
+        }
+        return out.toString();
+    }
+
+    private synchronized <T> T child(String name, String type, String help, String[] labels,
+                                     Class<T> kind, Supplier<T> factory) {
+        Family family = family(name, type, help);
+        Object existing = family.children.computeIfAbsent(labels(labels), k -> factory.get());
+        return kind.cast(existing);
+    }
+
+    private Family family(String name, String type, String help) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Métrique " + name + " déjà déclarée comme " + family.type);
+        }
+        return family;
+    }
+
+    private static String labels(String[] pairs) {
+        if (pairs.length % 2 != 0) throw new IllegalArgumentException("Labels attendus par paires nom/valeur");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(pairs[i]).append("=\"");
+            String value = pairs[i + 1] == null ? "" : pairs[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                    case '\\' -> sb.append("\\\\");
+                    case '"' -> sb.append("\\\"");
+                    case '\n' -> sb.append("\\n");
+                    default -> sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String join(String labels, String extra) {
+        return labels.isEmpty() ? extra : labels + "," + extra;
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,48 @@
+package fr.univtln.pegliasco.tp;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+/**
+ * Expose {@link Metrics#scrape()} sur {@code GET /metrics} pour Prometheus.
+ * Écoute par défaut sur 127.0.0.1 : l'endpoint n'est pas authentifié.
+ */
+public final class MetricsServer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsServer.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final DisposableServer server;
+
+    private MetricsServer(DisposableServer server) {
+        this.server = server;
+    }
+
+    /** Démarre le serveur ; null (et un log) si le port n'a pas pu être ouvert. */
+    public static MetricsServer start(String host, int port, Metrics metrics) {
+        try {
+            DisposableServer server = HttpServer.create()
+                    .host(host)
+                    .port(port)
+                    .route(routes -> routes.get("/metrics", (req, res) -> res
+                            .header(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE)
+                            .sendString(Mono.fromCallable(metrics::scrape))))
+                    .bindNow();
+            log.info("Métriques Prometheus sur http://{}:{}/metrics", host, server.port());
+            return new MetricsServer(server);
+        } catch (RuntimeException e) {
+            log.error("Export des métriques désactivé ({}:{}) : {}", host, port, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+}
@@ -1,123 +1,192 @@
 package fr.univtln.pegliasco.tp;
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import io.netty.channel.ChannelOption;
+import fr.univtln.pegliasco.tp.OllamaCodec.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.netty.ByteBufFlux;
 import reactor.netty.http.client.HttpClient;
 
 import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
 
 public class OllamaClient {
 
-    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Logger log = LoggerFactory.getLogger(OllamaClient.class);
+
     private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(120);
 
-    private final ObjectMapper mapper;
     private final HttpClient client;
-    private final String apiUrl;
-
-    public OllamaClient(String apiUrl) {
-        this.mapper = new ObjectMapper()
-                .configure(JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, true)
-                .configure(JsonParser.Feature.ALLOW_BACKSLASH_ESCAPING_ANY_CHARACTER, true);
+    private final LlmBalancer backends;
+    private final ResponseCache cache;
+    private final AdmissionController admission;
 
-        this.client = HttpClient.create()
+    OllamaClient(LlmBalancer backends, HttpClient http, ResponseCache cache, AdmissionController admission) {
+        // Client dérivé du pool partagé (BackendHttp) : seuls timeouts et en-têtes diffèrent
+        this.client = http
                 .compress(true)
                 .responseTimeout(RESPONSE_TIMEOUT)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) CONNECT_TIMEOUT.toMillis())
                 .headers(h -> {
                     h.set("Content-Type", "application/json; charset=utf-8");
                     h.set("Accept", "application/json");
                     h.set("User-Agent", "MyBot/1.0 (+reactor-netty)");
                 });
 
-        this.apiUrl = apiUrl;
+        this.backends = backends;
+        this.cache = cache;
+        this.admission = admission;
     }
 
-    public Mono<String> generate(String userMessage) {
-        String payload = buildPayload(userMessage, null);
-        return send(payload).flatMap(this::extractText).timeout(RESPONSE_TIMEOUT);
+    /* ---------- Streaming : un élément par token reçu ---------- */
+
+    public Flux<String> stream(String userMessage) {
+        return sendStream(new Request(userMessage, null, true));
     }
 
-    // Prompt dédié pour /teach
-    public Mono<String> generateTeaching(String concept) {
-        String instruction = "Explique clairement et de façon pédagogique le concept suivant pour un public technique, " +
-                "avec une structure courte: définition, pourquoi c'est utile, exemple simple, pièges courants.\nConcept: " + concept;
-        String payload = buildPayload(instruction, "teach");
-        return send(payload).flatMap(this::extractText).timeout(RESPONSE_TIMEOUT);
+    // Prompt dédié pour /teach (mis en cache, sans tenir compte de la casse du concept)
+    public Flux<String> streamTeaching(String concept) {
+        return cache.stream("teach", concept, true,
+                () -> sendStream(new Request(teachingPrompt(concept), "teach", true)));
     }
-    // Prompt dédié pour /translate
-    public Mono<String> generateTranslation(String text) {
-        String instruction = "Traduis le texte suivant en français de manière fluide et naturelle:\n\"" + text + "\"";
-        String payload = buildPayload(instruction, "translate");
-        return send(payload).flatMap(this::extractText).timeout(RESPONSE_TIMEOUT);
+
+    // Prompt dédié pour /translate (mis en cache)
+    public Flux<String> streamTranslation(String text) {
+        return cache.stream("translate", text, false,
+                () -> sendStream(new Request(translationPrompt(text), "translate", true)));
     }
-    // Prompt dédié pour /summarize
-    public Mono<String> generateSummary(String text) {
-        String instruction = "Fais un résumé concis et clair du texte suivant en français:\n\"" + text + "\"";
-        String payload = buildPayload(instruction, "summarize");
-        return send(payload).flatMap(this::extractText).timeout(RESPONSE_TIMEOUT);
+
+    // Prompt dédié pour /summarize (mis en cache)
+    public Flux<String> streamSummary(String text) {
+        return cache.stream("summarize", text, false,
+                () -> sendStream(new Request(summaryPrompt(text), "summarize", true)));
     }
 
     // Prompt dédié pour /qa
-    public Mono<String> generateQA(String context, String question) {
-        String instruction = "En te basant sur le contexte suivant, réponds de manière précise à la question posée. " +
+    public Flux<String> streamQA(String context, String question) {
+        return sendStream(new Request(qaPrompt(context, question), "qa", true));
+    }
+
+    /**
+     * Tour de conversation : {@code context} est l'état renvoyé à la fin du tour précédent (ou null).
+     * En fin de génération, {@code onContext} reçoit le nouvel état (null si le backend n'en renvoie pas).
+     */
+    public Flux<String> streamChat(String message, int[] context, Consumer<int[]> onContext) {
+        return sendStream(new Request(message, null, true, context), onContext);
+    }
+
+    // Résumé des anciens échanges d'une conversation (jamais mis en cache : chaque historique est unique)
+    public Mono<String> summarizeConversation(String transcript) {
+        return send(new Request(conversationSummaryPrompt(transcript), "summarize", false));
+    }
+
+    private static String teachingPrompt(String concept) {
+        return "Explique clairement et de façon pédagogique le concept suivant pour un public technique, " +
+                "avec une structure courte: définition, pourquoi c'est utile, exemple simple, pièges courants.\nConcept: " + concept;
+    }
+
+    private static String translationPrompt(String text) {
+        return "Traduis le texte suivant en français de manière fluide et naturelle:\n\"" + text + "\"";
+    }
+
+    private static String summaryPrompt(String text) {
+        return "Fais un résumé concis et clair du texte suivant en français:\n\"" + text + "\"";
+    }
+
+    private static String conversationSummaryPrompt(String transcript) {
+        return "Résume en français, en quelques phrases, la conversation suivante entre des utilisateurs et un assistant. " +
+                "Garde les faits, les décisions et les questions restées ouvertes, utiles pour la suite de l'échange:\n" +
+                transcript;
+    }
+
+    private static String qaPrompt(String context, String question) {
+        return "En te basant sur le contexte suivant, réponds de manière précise à la question posée. " +
                 "Si l'information n'est pas présente dans le contexte, indique que tu ne sais pas.\n" +
                 "Contexte: \"" + context + "\"\nQuestion: \"" + question + "\"";
-        String payload = buildPayload(instruction, "qa");
-        return send(payload).flatMap(this::extractText).timeout(RESPONSE_TIMEOUT);
-    }
-
-    private Mono<String> send(String payload) {
-        return client
-                .post()
-                .uri(apiUrl)
-                .send(ByteBufFlux.fromString(Mono.just(payload)))
-                .responseSingle((res, content) ->
-                        content.asString().flatMap(body -> {
-                            int code = res.status().code();
-                            if (code < 200 || code >= 300) {
-                                System.err.println("HTTP " + code + " - Corps: " + truncate(body, 512));
-                                return Mono.error(new IllegalStateException("HTTP " + code));
-                            }
-                            return Mono.just(body);
-                        })
-                );
-    }
-
-    private Mono<String> extractText(String body) {
-        try {
-            JsonNode json = mapper.readTree(body);
-            JsonNode node = json.path("response");
-            if (node.isMissingNode() || node.asText().isBlank()) node = json.path("message");
-            if (node.isMissingNode() || node.asText().isBlank()) node = json.path("content");
-
-            String value = node.isMissingNode() ? null : node.asText();
-            if (value != null && !value.isBlank()) return Mono.just(value);
-            if (body != null && !body.isBlank()) return Mono.just(body);
-            return Mono.error(new IllegalStateException("Réponse vide"));
-        } catch (Exception e) {
-            if (body != null && !body.isBlank()) return Mono.just(body);
-            return Mono.error(e);
-        }
-    }
-
-    private String buildPayload(String userMessage, String mode) {
-        try {
-            ObjectNode root = mapper.createObjectNode();
-            root.put("message", userMessage);
-            if (mode != null) {
-                root.put("mode", mode);
-            }
-            return mapper.writeValueAsString(root);
-        } catch (JsonProcessingException e) {
-            throw new IllegalStateException("Impossible de sérialiser la requête", e);
-        }
+    }
+
+    /**
+     * Passe par le contrôle d'admission : le timeout (et la mesure de l'étape backend)
+     * ne court qu'une fois l'appel admis. L'instance du backend est choisie par {@link LlmBalancer},
+     * le timeout s'applique à chaque tentative.
+     * La requête est encodée à chaque souscription (le tampon est libéré après écriture)
+     * et le texte est lu directement dans le corps agrégé.
+     */
+    private Mono<String> send(Request request) {
+        return admission.admit(CommandMetrics.backend(Mono.deferContextual(ctx -> {
+            Trace trace = Trace.from(ctx);
+            trace.request(request.message().length());
+            return backends.call(LlmBalancer.Call.SINGLE, request.message().length(), url -> client
+                    .post()
+                    .uri(url)
+                    .send(Mono.fromCallable(() -> OllamaCodec.encode(request)))
+                    .responseSingle((res, content) -> {
+                        int code = res.status().code();
+                        if (code < 200 || code >= 300) {
+                            return content.asString().defaultIfEmpty("").flatMap(body -> {
+                                log.warn("HTTP {} - Corps : {}", code, truncate(body, 512));
+                                return Mono.<String>error(new LlmBalancer.StatusException(code));
+                            });
+                        }
+                        return content.<String>handle((body, sink) -> {
+                            long start = System.nanoTime();
+                            String text = OllamaCodec.text(body);
+                            trace.record(CommandMetrics.Stage.DECODE, System.nanoTime() - start);
+                            if (text != null) sink.next(text);
+                            else sink.error(new IllegalStateException("Réponse vide"));
+                        });
+                    })
+                    .timeout(RESPONSE_TIMEOUT)
+                    .flux())
+                    .singleOrEmpty();
+        })));
+    }
+
+    /**
+     * Le backend répond en NDJSON (une ligne JSON par token, format Ollama) :
+     * on découpe le corps ligne par ligne au fil des chunks, sans l'agréger.
+     * Le timeout s'applique entre deux tokens et non plus à la génération entière.
+     */
+    private Flux<String> sendStream(Request request) {
+        return sendStream(request, context -> {});
+    }
+
+    private Flux<String> sendStream(Request request, Consumer<int[]> onContext) {
+        return admission.admit(CommandMetrics.backend(Flux.deferContextual(ctx -> {
+            Trace trace = Trace.from(ctx);
+            trace.request(request.message().length());
+            return backends.call(LlmBalancer.Call.STREAM, request.message().length(), url -> client
+                    .headers(h -> h.set("Accept", "application/x-ndjson, application/json"))
+                    .post()
+                    .uri(url)
+                    .send(Mono.fromCallable(() -> OllamaCodec.encode(request)))
+                    .<String>response((res, content) -> {
+                        int code = res.status().code();
+                        if (code < 200 || code >= 300) {
+                            return content.aggregate().asString().defaultIfEmpty("").flatMap(body -> {
+                                log.warn("HTTP {} - Corps : {}", code, truncate(body, 512));
+                                return Mono.<String>error(new LlmBalancer.StatusException(code));
+                            });
+                        }
+                        return Flux.defer(() -> {
+                            // Les morceaux sont libérés après onNext : map les lit avant toute mise en file
+                            OllamaCodec.TokenDecoder tokens = new OllamaCodec.TokenDecoder();
+                            long[] decodeNanos = {0};
+                            return content.map(chunk -> {
+                                        long start = System.nanoTime();
+                                        List<String> lines = tokens.feed(chunk);
+                                        decodeNanos[0] += System.nanoTime() - start;
+                                        return lines;
+                                    })
+                                    .concatMapIterable(list -> list)
+                                    .concatWith(Mono.fromCallable(tokens::rest))
+                                    .doOnComplete(() -> onContext.accept(tokens.context()))
+                                    .transform(lines -> CommandMetrics.onEnd(lines,
+                                            () -> trace.record(CommandMetrics.Stage.DECODE, decodeNanos[0])));
+                        });
+                    })
+                    .timeout(RESPONSE_TIMEOUT));
+        })));
     }
 
     private static String truncate(String s, int max) {
@@ -0,0 +1,276 @@
+package fr.univtln.pegliasco.tp;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodage des requêtes et lecture des réponses du backend, sans passer par des {@code String}
+ * ni par un arbre {@code JsonNode} :
+ * <ul>
+ *     <li>la requête est un record sérialisé par un {@link ObjectWriter} pré-construit,
+ *     directement dans un {@link ByteBuf} du pool ;</li>
+ *     <li>la réponse est lue par un parseur en flux sur le {@link ByteBuf} reçu,
+ *     qui s'arrête dès que le champ texte est trouvé.</li>
+ * </ul>
+ */
+final class OllamaCodec {
+
+    /**
+     * Corps de la requête ; {@code mode} et {@code context} sont omis quand ils sont null.
+     * {@code context} est le tableau renvoyé par le backend à la fin de l'échange précédent
+     * (état du modèle, format Ollama) : seul le nouveau message est alors évalué.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record Request(String message, String mode, boolean stream, int[] context) {
+        Request(String message, String mode, boolean stream) {
+            this(message, mode, stream, null);
+        }
+    }
+
+    private static final ObjectMapper MAPPER = JsonMapper.builder()
+            .enable(JsonReadFeature.ALLOW_UNESCAPED_CONTROL_CHARS, JsonReadFeature.ALLOW_BACKSLASH_ESCAPING_ANY_CHARACTER)
+            .build();
+    private static final ObjectWriter WRITER = MAPPER.writerFor(Request.class);
+    private static final ObjectReader READER = MAPPER.reader();
+
+    private OllamaCodec() {
+    }
+
+    /** Tampon du pool contenant la requête ; libéré par reactor-netty une fois écrit. */
+    static ByteBuf encode(Request request) {
+        ByteBuf buf = ByteBufAllocator.DEFAULT.buffer(request.message().length() + 64);
+        try {
+            WRITER.writeValue((OutputStream) new ByteBufOutputStream(buf), request);
+            return buf;
+        } catch (IOException e) {
+            buf.release();
+            throw new IllegalStateException("Impossible de sérialiser la requête", e);
+        }
+    }
+
+    /**
+     * Texte d'une réponse complète : "response", sinon "message" (ou "message.content"),
+     * sinon "content" ; à défaut le corps brut. Null si le corps est vide.
+     */
+    static String text(ByteBuf body) {
+        int index = body.readerIndex();
+        int length = body.readableBytes();
+        try (JsonParser p = parser(body.duplicate())) {
+            String text = readText(p, true, null);
+            if (text != null) return text;
+        } catch (IOException e) {
+            // Pas du JSON : le corps est du texte brut
+        }
+        String raw = body.toString(index, length, StandardCharsets.UTF_8);
+        return raw.isBlank() ? null : raw;
+    }
+
+    /**
+     * Parcourt l'objet JSON courant et renvoie le premier texte non vide par ordre de priorité.
+     * Les autres champs sont sautés sans être construits ; "response" arrête la lecture,
+     * sauf si {@code decoder} attend le tableau "context" (lu en entiers, sans arbre).
+     * Lève une {@link JsonParseException} si l'entrée n'est pas un objet.
+     */
+    private static String readText(JsonParser p, boolean skipBlank, TokenDecoder decoder) throws IOException {
+        if (p.nextToken() != JsonToken.START_OBJECT) throw new JsonParseException(p, "Objet JSON attendu");
+        String response = null;
+        String message = null;
+        String content = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken value = p.nextToken();
+            switch (field) {
+                case "response" -> {
+                    String text = value == JsonToken.VALUE_STRING ? p.getText() : null;
+                    if (accept(text, skipBlank)) {
+                        if (decoder == null) return text;
+                        response = text;
+                    }
+                    p.skipChildren();
+                }
+                case "context" -> {
+                    if (decoder != null && value == JsonToken.START_ARRAY) {
+                        decoder.context = readInts(p);
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                case "message" -> {
+                    String text = value == JsonToken.START_OBJECT ? readContent(p)
+                            : value == JsonToken.VALUE_STRING ? p.getText() : skip(p);
+                    if (accept(text, skipBlank)) message = text;
+                }
+                case "content" -> {
+                    String text = value == JsonToken.VALUE_STRING ? p.getText() : skip(p);
+                    if (accept(text, skipBlank)) content = text;
+                }
+                default -> p.skipChildren();
+            }
+        }
+        if (response != null) return response;
+        return message != null ? message : content;
+    }
+
+    /** Tableau d'entiers courant ; les éléments qui ne sont pas des entiers sont ignorés. */
+    private static int[] readInts(JsonParser p) throws IOException {
+        int[] values = new int[1024];
+        int size = 0;
+        JsonToken token;
+        while ((token = p.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (token != JsonToken.VALUE_NUMBER_INT) {
+                p.skipChildren();
+                continue;
+            }
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = p.getIntValue();
+        }
+        return Arrays.copyOf(values, size);
+    }
+
+    /** "content" de l'objet courant ("message" du format chat) ; consomme l'objet entier. */
+    private static String readContent(JsonParser p) throws IOException {
+        String content = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken value = p.nextToken();
+            if (field.equals("content") && value == JsonToken.VALUE_STRING) {
+                content = p.getText();
+            } else {
+                p.skipChildren();
+            }
+        }
+        return content;
+    }
+
+    private static String skip(JsonParser p) throws IOException {
+        p.skipChildren();
+        return null;
+    }
+
+    private static boolean accept(String text, boolean skipBlank) {
+        return text != null && !(skipBlank ? text.isBlank() : text.isEmpty());
+    }
+
+    private static JsonParser parser(ByteBuf buf) throws IOException {
+        if (buf.hasArray()) {
+            return READER.createParser(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+        }
+        return READER.createParser((InputStream) new ByteBufInputStream(buf));
+    }
+
+    /**
+     * Découpe un corps NDJSON (une ligne JSON par token, format Ollama) au fil des morceaux reçus
+     * et renvoie les tokens. Les lignes entières sont lues en place dans le morceau ;
+     * seules celles à cheval sur deux morceaux sont copiées.
+     */
+    static final class TokenDecoder {
+        private byte[] pending = new byte[256];
+        private int pendingLength;
+        private int[] context;
+
+        /** À appeler avant que le morceau ne soit libéré. */
+        List<String> feed(ByteBuf chunk) {
+            List<String> tokens = new ArrayList<>();
+            int from = chunk.readerIndex();
+            int end = chunk.writerIndex();
+            int lf;
+            while ((lf = chunk.indexOf(from, end, (byte) '\n')) >= 0) {
+                if (pendingLength == 0) {
+                    add(tokens, token(chunk.slice(from, lf - from)));
+                } else {
+                    append(chunk, from, lf - from);
+                    add(tokens, rest());
+                }
+                from = lf + 1;
+            }
+            append(chunk, from, end - from);
+            return tokens;
+        }
+
+        /** Tableau "context" de la ligne finale (done=true) ; null si le backend n'en renvoie pas. */
+        int[] context() {
+            return context;
+        }
+
+        /** Dernière ligne, sans '\n' final ; null si rien. */
+        String rest() {
+            String token = token(pending, pendingLength);
+            pendingLength = 0;
+            return token == null || token.isEmpty() ? null : token;
+        }
+
+        private void append(ByteBuf chunk, int from, int length) {
+            if (length == 0) return;
+            if (pendingLength + length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+            }
+            chunk.getBytes(from, pending, pendingLength, length);
+            pendingLength += length;
+        }
+
+        private static void add(List<String> tokens, String token) {
+            if (token != null && !token.isEmpty()) tokens.add(token);
+        }
+
+        /**
+         * Texte porté par une ligne : "response" (generate), "message.content" (chat) ou "content".
+         * La ligne finale (done=true) n'en a pas et renvoie null.
+         * Une ligne qui n'est pas du JSON est considérée comme du texte brut.
+         */
+        private String token(ByteBuf line) {
+            int length = line.readableBytes();
+            if (isBlank(line)) return null;
+            try (JsonParser p = parser(line)) {
+                return readText(p, false, this);
+            } catch (IOException e) {
+                return line.toString(0, length, StandardCharsets.UTF_8) + "\n";
+            }
+        }
+
+        private String token(byte[] line, int length) {
+            if (isBlank(line, length)) return null;
+            try (JsonParser p = READER.createParser(line, 0, length)) {
+                return readText(p, false, this);
+            } catch (IOException e) {
+                return new String(line, 0, length, StandardCharsets.UTF_8) + "\n";
+            }
+        }
+
+        private static boolean isBlank(ByteBuf line) {
+            for (int i = line.readerIndex(); i < line.writerIndex(); i++) {
+                if (!isSpace(line.getByte(i))) return false;
+            }
+            return true;
+        }
+
+        private static boolean isBlank(byte[] line, int length) {
+            for (int i = 0; i < length; i++) {
+                if (!isSpace(line[i])) return false;
+            }
+            return true;
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\r' || b == '\t';
+        }
+    }
+}
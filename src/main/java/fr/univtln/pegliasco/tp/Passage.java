@@ -0,0 +1,4 @@
+package fr.univtln.pegliasco.tp;
+
+/** Extrait d'un document indexé, tel qu'envoyé au modèle comme contexte. */
+public record Passage(long documentId, String documentName, String text) {}
@@ -0,0 +1,124 @@
+package fr.univtln.pegliasco.tp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recherche de passages pour /qa. Chaque document est découpé à l'indexation en passages
+ * qui se chevauchent, indexés en BM25 par salon ; une question récupère les meilleurs
+ * passages, éventuellement fusionnés avec ceux de la recherche vectorielle
+ * ({@link VectorRetriever}), dans la limite d'un budget de caractères.
+ */
+public final class PassageRetriever implements DocumentStore.Listener {
+
+    private static final int PASSAGE_CHARS = 800;
+    private static final int OVERLAP_CHARS = 150;
+    private static final String SEPARATOR = "\n\n---\n\n";
+    // Constante usuelle de la Reciprocal Rank Fusion
+    private static final int RRF_K = 60;
+
+    private final Map<Long, Bm25Index> indexes = new ConcurrentHashMap<>();
+    private final int topK;
+
+    public PassageRetriever(int topK) {
+        this.topK = topK;
+    }
+
+    @Override
+    public void added(DocumentStore.DocumentInfo doc, String text) {
+        List<String> chunks = chunk(text);
+        Bm25Index index = indexes.computeIfAbsent(doc.channelId(), k -> new Bm25Index());
+        synchronized (index) {
+            index.add(doc.id(), doc.name(), chunks);
+        }
+    }
+
+    @Override
+    public void removed(DocumentStore.DocumentInfo doc) {
+        Bm25Index index = indexes.get(doc.channelId());
+        if (index == null) return;
+        synchronized (index) {
+            index.remove(doc.id());
+            if (index.isEmpty()) indexes.remove(doc.channelId(), index);
+        }
+    }
+
+    /** Meilleurs passages BM25 pour la question. */
+    public List<Passage> search(long channelId, String question) {
+        Bm25Index index = indexes.get(channelId);
+        if (index == null) return List.of();
+        synchronized (index) {
+            return index.search(question, topK);
+        }
+    }
+
+    /** Début des documents du salon, quand aucune recherche ne donne de résultat. */
+    public List<Passage> firstPassages(long channelId) {
+        Bm25Index index = indexes.get(channelId);
+        if (index == null) return List.of();
+        synchronized (index) {
+            return index.firstPassages(topK);
+        }
+    }
+
+    /** Fusion de plusieurs classements (Reciprocal Rank Fusion), sans doublons. */
+    @SafeVarargs
+    public static List<Passage> fuse(List<Passage>... rankings) {
+        Map<Passage, Double> scores = new LinkedHashMap<>();
+        for (List<Passage> ranking : rankings) {
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                scores.merge(ranking.get(rank), 1.0 / (RRF_K + rank + 1), Double::sum);
+            }
+        }
+        List<Passage> fused = new ArrayList<>(scores.keySet());
+        fused.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        return fused;
+    }
+
+    /** Contexte pour le modèle : passages dans l'ordre donné, sans dépasser {@code budgetChars}. */
+    public static String assemble(List<Passage> passages, int budgetChars) {
+        StringBuilder sb = new StringBuilder();
+        for (Passage p : passages) {
+            String block = "[" + p.documentName() + "]\n" + p.text() + SEPARATOR;
+            if (sb.length() + block.length() > budgetChars) {
+                if (sb.isEmpty()) sb.append(block, 0, Math.max(0, budgetChars));
+                break;
+            }
+            sb.append(block);
+        }
+        return sb.toString();
+    }
+
+    /** Découpe en passages d'environ {@link #PASSAGE_CHARS}, coupés sur un blanc, avec recouvrement. */
+    static List<String> chunk(String text) {
+        List<String> chunks = new ArrayList<>();
+        int n = text.length();
+        int start = 0;
+        while (start < n) {
+            int end = Math.min(start + PASSAGE_CHARS, n);
+            if (end < n) {
+                int ws = lastWhitespace(text, start + PASSAGE_CHARS / 2, end);
+                if (ws > 0) end = ws;
+                if (Character.isHighSurrogate(text.charAt(end - 1))) end--;
+            }
+            String chunk = text.substring(start, end).trim();
+            if (!chunk.isEmpty()) chunks.add(chunk);
+            if (end == n) break;
+
+            int next = end - OVERLAP_CHARS;
+            int ws = lastWhitespace(text, start + 1, next);
+            start = Math.max(start + 1, ws > 0 ? ws : next);
+        }
+        return chunks;
+    }
+
+    private static int lastWhitespace(String text, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (Character.isWhitespace(text.charAt(i))) return i + 1;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,100 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+
+public class QaCommand implements CommandHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(QaCommand.class);
+
+    private static final ApplicationCommandRequest DEFINITION = ApplicationCommandRequest.builder()
+            .name("qa")
+            .description("Question-réponse basée sur les documents envoyés dans ce salon.")
+            .addOption(ApplicationCommandOptionData.builder()
+                    .name("question")
+                    .description("La question à poser sur les documents du salon.")
+                    .type(3)
+                    .required(true)
+                    .build())
+            .build();
+
+    private final OllamaClient ollama;
+    private final DocumentStore documents;
+    private final PassageRetriever retriever;
+    private final VectorRetriever vectors;
+    private final int contextChars;
+
+    public QaCommand(OllamaClient ollama, DocumentStore documents, PassageRetriever retriever,
+                     VectorRetriever vectors, int contextChars) {
+        this.ollama = ollama;
+        this.documents = documents;
+        this.retriever = retriever;
+        this.vectors = vectors;
+        this.contextChars = contextChars;
+    }
+
+    @Override
+    public ApplicationCommandRequest definition() {
+        return DEFINITION;
+    }
+
+    @Override
+    public Mono<Void> handle(ChatInputInteractionEvent evt) {
+        log.info("Interaction /qa reçue");
+
+        String question = CommandHandler.stringOption(evt, "question");
+
+        log.info("Question reçue pour /qa : {}", question);
+
+        if (question.isBlank()) {
+            return evt.reply()
+                    .withEphemeral(true)
+                    .withContent("Veuillez fournir une question.");
+        }
+
+        long channelId = evt.getInteraction().getChannelId().asLong();
+        // Le salon interrogé devient le plus récemment utilisé pour l'éviction
+        if (!documents.touch(channelId)) {
+            log.info("Aucun document indexé pour le salon {}", channelId);
+            return evt.reply()
+                    .withEphemeral(true)
+                    .withContent(
+                            "Aucun document n'a encore été indexé sur ce salon.\n" +
+                                    "Envoyez d'abord un ou plusieurs fichiers texte, puis réessayez /qa."
+                    );
+        }
+
+        // Seuls les passages les plus pertinents (BM25 + recherche vectorielle) partent dans le prompt
+        Mono<String> context = vectors.search(channelId, question)
+                .onErrorResume(e -> {
+                    log.warn("Recherche vectorielle indisponible : {}", e.getMessage());
+                    return Mono.just(List.of());
+                })
+                .map(semantic -> {
+                    List<Passage> passages = PassageRetriever.fuse(retriever.search(channelId, question), semantic);
+                    if (passages.isEmpty()) {
+                        // Aucun passage pertinent : on donne au moins le début des documents
+                        passages = retriever.firstPassages(channelId);
+                    }
+                    String ctx = PassageRetriever.assemble(passages, contextChars);
+                    log.info("Contexte /qa pour le salon {} : {} passages, {} caractères",
+                            channelId, passages.size(), ctx.length());
+                    return ctx;
+                });
+
+        return CommandMetrics.time(CommandMetrics.Stage.DEFER, evt.deferReply())
+                .then(
+                        StreamingReply.stream(
+                                context.flatMapMany(ctx -> ollama.streamQA(ctx, question)),
+                                StreamingReply.followups(evt),
+                                "Erreur lors du traitement de la question.")
+                );
+    }
+}
@@ -0,0 +1,73 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.core.object.entity.Member;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+public class RefreshCommand implements CommandHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(RefreshCommand.class);
+
+    private static final ApplicationCommandRequest DEFINITION = ApplicationCommandRequest.builder()
+            .name("refresh")
+            .description("Envoie au backend toutes les infos de la guilde (rôles, membres...).")
+            .build();
+
+    private final GuildSync sync;
+
+    public RefreshCommand(GuildSync sync) {
+        this.sync = sync;
+    }
+
+    @Override
+    public ApplicationCommandRequest definition() {
+        return DEFINITION;
+    }
+
+    @Override
+    public int maxConcurrency() {
+        // Un snapshot de guilde est coûteux (tous les membres) : on en limite le nombre simultané
+        return 2;
+    }
+
+    @Override
+    public Mono<Void> handle(ChatInputInteractionEvent evt) {
+        log.info("Interaction /refresh reçue");
+
+        var optMember = evt.getInteraction().getMember();
+        if (optMember.isEmpty()) {
+            return evt.reply()
+                    .withEphemeral(true)
+                    .withContent("Impossible de déterminer la guilde.");
+        }
+
+        Member member = optMember.get();
+        Snowflake guildIdSnowflake = member.getGuildId();
+        long guildId = guildIdSnowflake.asLong();
+
+        log.info("Refresh demandé pour la guilde {}", guildId);
+
+        return CommandMetrics.time(CommandMetrics.Stage.DEFER, evt.deferReply())
+                .then(
+                        evt.getClient().getGuildById(guildIdSnowflake)
+                                .flatMap(sync::refresh)
+                                .flatMapMany(apiResp ->
+                                        Flux.fromIterable(
+                                                MessageUtils.splitForDiscord("Réponse API : " + apiResp)
+                                        )
+                                )
+                                .concatMap(part -> evt.createFollowup().withContent(part))
+                                .onErrorResume(e -> {
+                                    log.error("Erreur /refresh : {}", e.getMessage(), e);
+                                    return Flux.empty();
+                                })
+
+                                .then()
+                );
+    }
+}
@@ -0,0 +1,128 @@
+package fr.univtln.pegliasco.tp;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Cache des réponses du modèle pour les prompts qui ne dépendent que du texte saisi
+ * (/teach, /translate, /summarize).
+ * <ul>
+ *     <li>clé = mode + texte normalisé (NFC, espaces compactés) ;</li>
+ *     <li>Caffeine (W-TinyLFU) borné en poids (nombre de caractères) avec TTL ;</li>
+ *     <li>single-flight : des requêtes identiques simultanées partagent le même appel backend ; il part avec
+ *     le serveur et l'utilisateur du premier demandeur, mais chaque abonné mesure sa propre attente
+ *     (étape BACKEND de sa trace) et reçoit la position de l'appel dans la file d'admission.</li>
+ * </ul>
+ */
+public final class ResponseCache {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private record Key(String mode, String input) {}
+
+    /** Génération partagée ; la position dans la file est relayée à tous ses abonnés. */
+    private static final class Generation {
+        final Set<IntConsumer> listeners = ConcurrentHashMap.newKeySet();
+        volatile int position;    // 0 : pas (ou plus) en file
+        Flux<String> tokens;
+
+        void queued(int position) {
+            this.position = position;
+            listeners.forEach(l -> l.accept(position));
+        }
+    }
+
+    private final AsyncCache<Key, String> cache;
+    // Générations en cours (stream), retirées à leur fin ; seules les réponses complètes vont dans le cache
+    private final Map<Key, Generation> generating = new ConcurrentHashMap<>();
+
+    public ResponseCache(long maxChars, Duration ttl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxChars)
+                .<Key, String>weigher((key, value) -> key.input().length() + value.length())
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+    }
+
+    /**
+     * Réponse en streaming : en cas de hit la réponse arrive en un seul élément ; sinon les tokens sont relayés
+     * et accumulés pour le cache. Une génération en cours est partagée : les demandes identiques reçoivent
+     * les tokens déjà produits puis la suite. Elle n'est annulée que lorsque tous ses abonnés sont partis,
+     * pas quand le premier (celui qui l'a déclenchée) s'en va ; elle ne porte pas sa trace.
+     */
+    public Flux<String> stream(String mode, String input, boolean ignoreCase, Supplier<Flux<String>> loader) {
+        Key key = new Key(mode, normalize(input, ignoreCase));
+        return Flux.deferContextual(ctx -> {
+            CompletableFuture<String> cached = cache.getIfPresent(key);
+            if (cached != null) {
+                return Mono.fromFuture(cached, true).flux();
+            }
+            Generation generation = generating.computeIfAbsent(key, k -> generation(k, loader, ctx));
+            IntConsumer listener = AdmissionController.queueListener(ctx);
+            Flux<String> tokens = generation.tokens;
+            if (listener != null) {
+                tokens = Flux.defer(() -> {
+                    generation.listeners.add(listener);
+                    int position = generation.position;
+                    if (position > 0) listener.accept(position);
+                    return generation.tokens.doFinally(signal -> generation.listeners.remove(listener));
+                });
+            }
+            return CommandMetrics.backend(tokens);
+        });
+    }
+
+    private Generation generation(Key key, Supplier<Flux<String>> loader, ContextView ctx) {
+        Generation generation = new Generation();
+        // Ni la trace ni l'abonné à la file du premier demandeur : la génération peut lui survivre
+        Context shared = Trace.without(ctx).putAll(AdmissionController.onQueued(generation::queued).readOnly());
+        generation.tokens = Flux.defer(() -> {
+                    StringBuilder acc = new StringBuilder();
+                    return loader.get()
+                            .doOnNext(token -> {
+                                generation.position = 0;
+                                acc.append(token);
+                            })
+                            // En cache avant de quitter la table des générations : pas de trou entre les deux
+                            .doOnComplete(() -> {
+                                if (!acc.isEmpty()) cache.put(key, CompletableFuture.completedFuture(acc.toString()));
+                            });
+                })
+                .doFinally(signal -> generating.remove(key, generation))
+                .contextWrite(shared)
+                .replay()
+                .refCount(1);
+        return generation;
+    }
+
+    public CacheStats stats() {
+        return cache.synchronous().stats();
+    }
+
+    public long size() {
+        return cache.synchronous().estimatedSize();
+    }
+
+    static String normalize(String input, boolean ignoreCase) {
+        String s = Normalizer.normalize(input, Normalizer.Form.NFC);
+        s = WHITESPACE.matcher(s).replaceAll(" ").trim();
+        return ignoreCase ? s.toLowerCase(Locale.ROOT) : s;
+    }
+}
@@ -0,0 +1,132 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+public class RoleCommand implements CommandHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(RoleCommand.class);
+
+    private static final ApplicationCommandRequest DEFINITION = ApplicationCommandRequest.builder()
+            .name("role")
+            .description("Gestion des rôles via API")
+            .addOption(ApplicationCommandOptionData.builder()
+                    .name("create")
+                    .description("Créer un rôle")
+                    .type(1) // SUB_COMMAND
+                    .addOption(ApplicationCommandOptionData.builder()
+                            .name("name")
+                            .description("Nom du rôle")
+                            .type(3) // STRING
+                            .required(true)
+                            .build())
+                    .addOption(ApplicationCommandOptionData.builder()
+                            .name("permissions")
+                            .description("Permissions (séparées par des virgules)")
+                            .type(3) // STRING
+                            .required(true)
+                            .build())
+                    .build())
+            .build();
+
+    private final ApiConfig api;
+    private final HttpClient http;
+
+    public RoleCommand(ApiConfig api, HttpClient http) {
+        this.api = api;
+        this.http = http;
+    }
+
+    @Override
+    public ApplicationCommandRequest definition() {
+        return DEFINITION;
+    }
+
+    @Override
+    public String subcommand() {
+        return "create";
+    }
+
+    @Override
+    public int maxConcurrency() {
+        return 4;
+    }
+
+    @Override
+    public Mono<Void> handle(ChatInputInteractionEvent evt) {
+        log.info("Interaction /role reçue");
+
+        var createOpt = evt.getOption("create");
+        if (createOpt.isEmpty()) {
+            log.info("Sous-commande /role create absente");
+            return Mono.empty();
+        }
+
+        String roleName = CommandHandler.stringOption(createOpt, "name");
+        String permissionsCsv = CommandHandler.stringOption(createOpt, "permissions");
+
+        // TODO: récupérer ces deux valeurs depuis votre contexte si nécessaire
+        long membershipId = evt.getInteraction().getMember()
+                .map(m -> m.getId().asLong()) // placeholder: à remplacer par votre vrai membershipId
+                .orElse(-1L);
+        int position = 0; // placeholder: à remplacer selon votre logique
+
+        log.info("Arguments /role create: name='{}', permissions='{}', membershipId={}, position={}",
+                roleName, permissionsCsv, membershipId, position);
+
+        if (roleName.isBlank() || permissionsCsv.isBlank() || membershipId <= 0) {
+            return evt.reply()
+                    .withEphemeral(true)
+                    .withContent("Paramètres requis manquants: `name`, `permissions`, `membershipId`.");
+        }
+
+        long guildId = evt.getInteraction().getGuildId().map(Snowflake::asLong).orElse(-1L);
+        if (guildId <= 0) {
+            return evt.reply().withEphemeral(true).withContent("GuildId invalide.");
+        }
+
+        String base = api.roleCreateUrl(guildId);
+        // Construction de l’URI avec query params attendus par le backend
+        String uri = base
+                + "?membershipId=" + membershipId
+                + "&roleName=" + HttpUtils.encode(roleName)
+                + "&position=" + position
+                + "&permissions=" + HttpUtils.encode(permissionsCsv);
+
+        log.info("Appel API rôle: POST {}", uri);
+
+        return CommandMetrics.time(CommandMetrics.Stage.DEFER, evt.deferReply())
+                .then(
+                        http
+                                .post()
+                                .uri(uri)
+                                .responseSingle((res, buf) -> {
+                                    int code = res.status().code();
+                                    return buf.asString().defaultIfEmpty("")
+                                            .flatMap(body -> {
+                                                if (code >= 200 && code < 300) {
+                                                    return Mono.just(body.isBlank() ? "Rôle créé." : body);
+                                                } else {
+                                                    return Mono.error(new RuntimeException("HTTP " + code + " — " + HttpUtils.shortBody(res, body)));
+                                                }
+                                            });
+                                })
+                                .flatMapMany(apiResp ->
+                                        Flux.fromIterable(MessageUtils.splitForDiscord("Réponse API : " + apiResp))
+                                )
+                                .concatMap(part -> evt.createFollowup().withContent(part))
+                                .onErrorResume(e -> evt.createFollowup().withContent(
+                                        MessageUtils.splitForDiscord("Erreur lors de la création du rôle : " + e.getMessage())
+                                                .get(0)
+                                ))
+                                .then()
+                );
+    }
+}
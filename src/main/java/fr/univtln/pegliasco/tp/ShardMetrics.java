@@ -0,0 +1,49 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.event.domain.Event;
+import discord4j.gateway.GatewayClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Métriques par shard des connexions Gateway gérées par ce processus :
+ * événements reçus par type, latence du heartbeat et nombre total de shards du bot.
+ * Les compteurs sont créés au premier événement d'un couple (type, shard) puis réutilisés.
+ */
+final class ShardMetrics {
+
+    private final Metrics metrics;
+    private final Map<Class<?>, Map<Integer, Metrics.Counter>> events = new ConcurrentHashMap<>();
+
+    ShardMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Compte les événements de {@code gateway} et enregistre les jauges de ses shards. */
+    Mono<Void> listen(GatewayDiscordClient gateway) {
+        metrics.gauge("bot_gateway_shards", "Nombre total de shards du bot (tous processus confondus)",
+                () -> gateway.getGatewayClientGroup().getShardCount());
+        metrics.gauges("bot_gateway_latency_seconds", "Latence du heartbeat Gateway par shard", sampler -> {
+            int count = gateway.getGatewayClientGroup().getShardCount();
+            for (int shard = 0; shard < count; shard++) {
+                Duration latency = gateway.getGatewayClient(shard).map(GatewayClient::getResponseTime).orElse(null);
+                if (latency != null) sampler.sample(latency.toNanos() / 1e9, "shard", Integer.toString(shard));
+            }
+        });
+        return gateway.on(Event.class)
+                .doOnNext(evt -> counter(evt).inc())
+                .then();
+    }
+
+    private Metrics.Counter counter(Event evt) {
+        int shard = evt.getShardInfo().getIndex();
+        return events.computeIfAbsent(evt.getClass(), type -> new ConcurrentHashMap<>())
+                .computeIfAbsent(shard, index -> metrics.counter("bot_gateway_events_total",
+                        "Événements Gateway reçus par shard",
+                        "shard", Integer.toString(index), "event", evt.getClass().getSimpleName()));
+    }
+}
@@ -0,0 +1,196 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.event.domain.interaction.DeferrableInteractionEvent;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.channel.MessageChannel;
+import discord4j.discordjson.possible.Possible;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Affichage progressif d'une réponse générée en streaming.
+ * Le premier message part dès le premier token, puis il est édité au fil de la génération
+ * (au plus une édition par {@link #EDIT_INTERVAL}, pour rester sous la limite d'édition de Discord).
+ * Quand le texte dépasse 2000 caractères, la suite bascule dans un nouveau message :
+ * le découpage est incrémental ({@link MessageUtils.Splitter}), les parties déjà pleines ne sont plus recalculées.
+ * Tant que l'appel attend son tour ({@link AdmissionController}), sa position dans la file est affichée.
+ */
+public final class StreamingReply {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamingReply.class);
+
+    private static final Duration EDIT_INTERVAL = Duration.ofSeconds(1);
+
+    /** Où sont publiés les messages : followups d'une interaction ou salon classique. */
+    public interface Target {
+        Mono<Message> create(String content);
+
+        Mono<Message> edit(Message message, String content);
+    }
+
+    private final Target target;
+    // Échappement et découpage en une passe ; les blocs de code du modèle restent affichés comme tels
+    private final MessageUtils.Splitter splitter = MessageUtils.Splitter.escaping(true);
+    private final List<String> completed = new ArrayList<>();
+    private final List<Message> messages = new ArrayList<>();
+    private final List<String> shown = new ArrayList<>();
+    private volatile String notice;
+    private final Trace trace;
+    private long splitNanos;
+    private long chars;
+
+    private StreamingReply(Target target, Trace trace) {
+        this.target = target;
+        this.trace = trace;
+    }
+
+    public static Target followups(DeferrableInteractionEvent evt) {
+        return new Target() {
+            @Override
+            public Mono<Message> create(String content) {
+                return evt.createFollowup(content);
+            }
+
+            @Override
+            public Mono<Message> edit(Message message, String content) {
+                return evt.editFollowup(message.getId()).withContent(Possible.of(Optional.of(content)));
+            }
+        };
+    }
+
+    public static Target channel(Mono<MessageChannel> channel) {
+        return new Target() {
+            @Override
+            public Mono<Message> create(String content) {
+                return channel.flatMap(ch -> ch.createMessage(content));
+            }
+
+            @Override
+            public Mono<Message> edit(Message message, String content) {
+                return message.edit().withContent(Possible.of(Optional.of(content)));
+            }
+        };
+    }
+
+    /**
+     * Publie les tokens au fil de l'eau. En cas d'erreur du modèle, {@code errorMessage}
+     * est affiché à la place (ou à la suite du texte déjà reçu).
+     */
+    public static Mono<Void> stream(Flux<String> tokens, Target target, String errorMessage) {
+        return Mono.deferContextual(ctx ->
+                new StreamingReply(target, Trace.from(ctx)).run(tokens, errorMessage));
+    }
+
+    private Mono<Void> run(Flux<String> tokens, String errorMessage) {
+        Sinks.Many<Boolean> queueTicks = Sinks.many().unicast().onBackpressureBuffer();
+
+        Flux<Boolean> tokenTicks = tokens
+                .contextWrite(AdmissionController.onQueued(position -> {
+                    notice = "⏳ En file d'attente (position " + position + ")…";
+                    queueTicks.emitNext(Boolean.FALSE, Sinks.EmitFailureHandler.busyLooping(EDIT_INTERVAL));
+                }))
+                .switchIfEmpty(Mono.error(new IllegalStateException("Réponse vide")))
+                .onErrorResume(e -> {
+                    if (e instanceof AdmissionController.OverloadedException) {
+                        return Mono.just(e.getMessage());
+                    }
+                    log.error("Erreur génération en streaming : {}", e.getMessage(), e);
+                    return Mono.just(isEmpty() ? errorMessage : "\n\n" + errorMessage);
+                })
+                .doOnNext(this::append)
+                .map(token -> Boolean.FALSE)
+                .doFinally(signal -> queueTicks.emitComplete(Sinks.EmitFailureHandler.busyLooping(EDIT_INTERVAL)));
+
+        return Flux.merge(tokenTicks, queueTicks.asFlux())
+                // 🔹 Premier token affiché immédiatement, puis une édition max par intervalle
+                .sampleFirst(EDIT_INTERVAL)
+                .concatWith(Mono.just(Boolean.TRUE))
+                // Le buffer est cumulatif : on peut sauter les ticks intermédiaires sans rien perdre
+                .onBackpressureLatest()
+                .concatMap(this::flush, 1)
+                .then()
+                .transform(reply -> CommandMetrics.onEnd(reply, this::finish));
+    }
+
+    private synchronized void append(String token) {
+        long start = System.nanoTime();
+        completed.addAll(splitter.feed(token));
+        splitNanos += System.nanoTime() - start;
+        chars += token.length();
+    }
+
+    /** Temps passé à échapper et découper, taille de la réponse et nombre de messages publiés. */
+    private synchronized void finish() {
+        trace.record(CommandMetrics.Stage.SPLIT, splitNanos);
+        trace.response(chars, messages.size());
+    }
+
+    private synchronized boolean isEmpty() {
+        return completed.isEmpty() && splitter.isEmpty();
+    }
+
+    /** Parties complètes puis partie en cours. */
+    private synchronized List<String> snapshot() {
+        List<String> parts = new ArrayList<>(completed.size() + 1);
+        parts.addAll(completed);
+        if (!splitter.isEmpty()) parts.add(splitter.preview());
+        return parts;
+    }
+
+    private Mono<Void> flush(boolean last) {
+        List<String> snapshot = snapshot();
+        boolean blank = snapshot.isEmpty() || (snapshot.size() == 1 && snapshot.get(0).isBlank());
+        if (blank && !last && notice != null) {
+            snapshot = List.of(notice);
+            blank = false;
+        }
+        if (blank) {
+            // Discord refuse les messages vides ; en fin de flux il faut tout de même répondre
+            // (ce qui remplace aussi l'éventuel message d'attente)
+            if (!last) return Mono.empty();
+            snapshot = List.of("Réponse vide.");
+        }
+
+        List<String> parts = snapshot;
+        return Flux.range(0, parts.size())
+                .concatMap(i -> publish(i, parts.get(i)))
+                .then();
+    }
+
+    private Mono<Void> publish(int index, String part) {
+        if (index < messages.size()) {
+            if (part.equals(shown.get(index))) {
+                return Mono.empty();
+            }
+            return CommandMetrics.time(CommandMetrics.Stage.FOLLOWUP, target.edit(messages.get(index), part))
+                    .doOnNext(m -> shown.set(index, part))
+                    .onErrorResume(e -> {
+                        log.error("Erreur édition Discord : {}", e.getMessage(), e);
+                        return Mono.empty();
+                    })
+                    .then();
+        }
+        if (index > messages.size()) {
+            // La partie précédente n'a pas pu être créée : on réessaiera au prochain flush
+            return Mono.empty();
+        }
+        return CommandMetrics.time(CommandMetrics.Stage.FOLLOWUP, target.create(part))
+                .doOnNext(m -> {
+                    messages.add(m);
+                    shown.add(part);
+                })
+                .onErrorResume(e -> {
+                    log.error("Erreur envoi Discord : {}", e.getMessage(), e);
+                    return Mono.empty();
+                })
+                .then();
+    }
+}
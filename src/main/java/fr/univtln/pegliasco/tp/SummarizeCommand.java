@@ -0,0 +1,58 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+public class SummarizeCommand implements CommandHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(SummarizeCommand.class);
+
+    private static final ApplicationCommandRequest DEFINITION = ApplicationCommandRequest.builder()
+            .name("summarize")
+            .description("Résumer un texte en français.")
+            .addOption(ApplicationCommandOptionData.builder()
+                    .name("text")
+                    .description("Le texte à résumer.")
+                    .type(3)
+                    .required(true)
+                    .build())
+            .build();
+
+    private final OllamaClient ollama;
+
+    public SummarizeCommand(OllamaClient ollama) {
+        this.ollama = ollama;
+    }
+
+    @Override
+    public ApplicationCommandRequest definition() {
+        return DEFINITION;
+    }
+
+    @Override
+    public Mono<Void> handle(ChatInputInteractionEvent evt) {
+        log.info("Interaction /summarize reçue");
+
+        String textToSummarize = CommandHandler.stringOption(evt, "text");
+
+        log.info("Texte reçu pour résumé : {}", textToSummarize);
+
+        if (textToSummarize.isBlank()) {
+            return evt.reply()
+                    .withEphemeral(true)
+                    .withContent("Veuillez fournir un texte à résumer.");
+        }
+
+        return CommandMetrics.time(CommandMetrics.Stage.DEFER, evt.deferReply())
+                .then(
+                        StreamingReply.stream(
+                                ollama.streamSummary(textToSummarize),
+                                StreamingReply.followups(evt),
+                                "Erreur lors du résumé du texte.")
+                );
+    }
+}
@@ -0,0 +1,58 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+public class TeachCommand implements CommandHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(TeachCommand.class);
+
+    private static final ApplicationCommandRequest DEFINITION = ApplicationCommandRequest.builder()
+            .name("teach")
+            .description("Expliquer un concept technique.")
+            .addOption(ApplicationCommandOptionData.builder()
+                    .name("concept")
+                    .description("Le concept technique à expliquer.")
+                    .type(3)
+                    .required(true)
+                    .build())
+            .build();
+
+    private final OllamaClient ollama;
+
+    public TeachCommand(OllamaClient ollama) {
+        this.ollama = ollama;
+    }
+
+    @Override
+    public ApplicationCommandRequest definition() {
+        return DEFINITION;
+    }
+
+    @Override
+    public Mono<Void> handle(ChatInputInteractionEvent evt) {
+        log.info("Interaction /teach reçue");
+
+        String concept = CommandHandler.stringOption(evt, "concept");
+
+        log.info("Concept reçu : {}", concept);
+
+        if (concept.isBlank()) {
+            return evt.reply()
+                    .withEphemeral(true)
+                    .withContent("Veuillez fournir un concept à expliquer.");
+        }
+
+        return CommandMetrics.time(CommandMetrics.Stage.DEFER, evt.deferReply())
+                .then(
+                        StreamingReply.stream(
+                                ollama.streamTeaching(concept),
+                                StreamingReply.followups(evt),
+                                "Erreur lors de l'explication du concept.")
+                );
+    }
+}
@@ -0,0 +1,82 @@
+package fr.univtln.pegliasco.tp;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Analyse de texte pour la recherche (français et anglais) :
+ * minuscules, suppression des accents, découpage sur les caractères non alphanumériques,
+ * mots vides retirés et racinisation légère par suffixes.
+ */
+public final class TextAnalyzer {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            // Français (sans accents, après normalisation)
+            "a", "au", "aux", "avec", "ce", "ces", "cet", "cette", "dans", "de", "des", "du", "elle", "elles",
+            "en", "est", "et", "etre", "il", "ils", "je", "la", "le", "les", "leur", "leurs", "lui", "ma", "mais",
+            "me", "mes", "ne", "ni", "nous", "on", "ou", "par", "pas", "plus", "pour", "qu", "que", "quel",
+            "quelle", "qui", "quoi", "sa", "sans", "se", "ses", "son", "sont", "sur", "ta", "te", "tes", "ton",
+            "tu", "un", "une", "vos", "votre", "vous", "y", "c", "d", "j", "l", "m", "n", "s", "t",
+            // Anglais
+            "an", "and", "are", "as", "at", "be", "been", "but", "by", "can", "do", "does", "for", "from",
+            "how", "if", "in", "into", "is", "it", "its", "of", "or", "that", "the", "their", "then",
+            "there", "these", "this", "those", "to", "was", "were", "what", "when", "where", "which", "who",
+            "why", "will", "with"
+    );
+
+    // Du plus long au plus court : le premier suffixe qui correspond est retiré
+    private static final String[] SUFFIXES = {
+            "issements", "issement", "ements", "ations", "ateurs", "atrices", "ement", "ation", "ateur",
+            "atrice", "ments", "ment", "euses", "euse", "ables", "ibles", "ness", "ings", "able", "ible",
+            "ions", "ing", "ion", "eux", "ies", "ers", "ees", "es", "er", "ed", "ly", "ee", "s", "x", "e"
+    };
+
+    private static final int MIN_STEM = 3;
+
+    private TextAnalyzer() {}
+
+    public static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null || text.isEmpty()) return terms;
+
+        String folded = fold(text);
+        int n = folded.length();
+        int start = -1;
+        for (int i = 0; i <= n; i++) {
+            boolean wordChar = i < n && Character.isLetterOrDigit(folded.charAt(i));
+            if (wordChar) {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                addTerm(terms, folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    static String stem(String token) {
+        if (token.length() <= MIN_STEM || Character.isDigit(token.charAt(0))) return token;
+        for (String suffix : SUFFIXES) {
+            if (token.endsWith(suffix) && token.length() - suffix.length() >= MIN_STEM) {
+                return token.substring(0, token.length() - suffix.length());
+            }
+        }
+        return token;
+    }
+
+    private static void addTerm(List<String> terms, String token) {
+        if (STOP_WORDS.contains(token)) return;
+        terms.add(stem(token));
+    }
+
+    private static String fold(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,164 @@
+package fr.univtln.pegliasco.tp;
+
+import fr.univtln.pegliasco.tp.CommandMetrics.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.SignalType;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Trace d'une interaction (commande slash ou mention), posée dans le contexte Reactor par
+ * {@link CommandMetrics#measure}. Chaque étape y cumule sa durée en plus de l'histogramme de la commande ;
+ * en fin d'interaction, une ligne {@code clé=valeur} est écrite si la durée totale dépasse le seuil
+ * ({@code WARN}) ou si l'interaction est tirée au sort ({@code INFO}) :
+ * <pre>
+ * command=qa shard=0 guild=… user=… outcome=complete total_ms=91234 queue_ms=40 defer_ms=180 backend_ms=89500
+ * first_token_ms=61020 decode_ms=12 split_ms=4 followup_ms=1320 followups=6 request_chars=5812
+ * response_chars=4210 parts=3
+ * </pre>
+ * {@code first_token_ms} est compté depuis le début de l'interaction, les autres durées sont cumulées par étape.
+ */
+public final class Trace {
+
+    private static final Logger log = LoggerFactory.getLogger(Trace.class);
+
+    private static final String KEY = Trace.class.getName();
+
+    /** Quand écrire la trace : au-delà de {@code slowThreshold}, ou pour une fraction {@code sampleRate}. */
+    public record Policy(Duration slowThreshold, double sampleRate) {
+        public static final Policy OFF = new Policy(null, 0);
+
+        boolean slow(long nanos) {
+            return slowThreshold != null && nanos >= slowThreshold.toNanos();
+        }
+
+        boolean sampled() {
+            return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+        }
+    }
+
+    /** Hors interaction : les étapes vont dans des instruments non exportés et rien n'est écrit. */
+    static final Trace NONE = new Trace(CommandMetrics.NONE, "none", Policy.OFF, 0, 0, 0);
+
+    private final CommandMetrics metrics;
+    private final String command;
+    private final Policy policy;
+    private final int shard;
+    private final long guildId;
+    private final long userId;
+    private final long startNanos = System.nanoTime();
+
+    // Les étapes peuvent se chevaucher (éditions pendant la génération) : accès sous le moniteur
+    private final long[] stageNanos = new long[Stage.values().length];
+    private final int[] stageCalls = new int[Stage.values().length];
+    private long queueNanos;
+    private long firstTokenNanos = -1;
+    private long requestChars;
+    private long responseChars;
+    private int parts;
+
+    Trace(CommandMetrics metrics, String command, Policy policy, int shard, long guildId, long userId) {
+        this.metrics = metrics;
+        this.command = command;
+        this.policy = policy;
+        this.shard = shard;
+        this.guildId = guildId;
+        this.userId = userId;
+    }
+
+    Context context() {
+        return Context.of(KEY, this);
+    }
+
+    public static Trace from(ContextView ctx) {
+        return ctx.getOrDefault(KEY, NONE);
+    }
+
+    /** Contexte sans trace, pour un travail partagé par plusieurs interactions (chacune mesure sa part). */
+    static Context without(ContextView ctx) {
+        return Context.of(ctx).delete(KEY);
+    }
+
+    CommandMetrics metrics() {
+        return metrics;
+    }
+
+    /** Durée d'une étape : histogramme de la commande et cumul de la trace. */
+    public void record(Stage stage, long nanos) {
+        metrics.record(stage, nanos);
+        synchronized (this) {
+            stageNanos[stage.ordinal()] += nanos;
+            stageCalls[stage.ordinal()]++;
+        }
+    }
+
+    /** Attente dans la file d'admission avant l'appel au modèle. */
+    public synchronized void queued(long nanos) {
+        queueNanos += nanos;
+    }
+
+    /** Premier token reçu du modèle ; seul le premier appel compte. */
+    public synchronized void firstToken() {
+        if (firstTokenNanos < 0) firstTokenNanos = System.nanoTime() - startNanos;
+    }
+
+    public synchronized void request(int chars) {
+        requestChars += chars;
+    }
+
+    public synchronized void response(long chars, int parts) {
+        this.responseChars = chars;
+        this.parts = parts;
+    }
+
+    /** Fin de l'interaction : écrit la trace si elle est lente ou tirée au sort. */
+    void finish(SignalType signal) {
+        long total = System.nanoTime() - startNanos;
+        boolean slow = policy.slow(total);
+        if (!slow && !policy.sampled()) return;
+        String record = format(signal, total);
+        if (slow) {
+            log.warn("Interaction lente : {}", record);
+        } else {
+            log.info("Trace : {}", record);
+        }
+    }
+
+    private synchronized String format(SignalType signal, long total) {
+        StringBuilder sb = new StringBuilder(256)
+                .append("command=").append(command.replace(' ', '_'))
+                .append(" shard=").append(shard)
+                .append(" guild=").append(guildId)
+                .append(" user=").append(userId)
+                .append(" outcome=").append(outcome(signal));
+        millis(sb, "total_ms", total);
+        if (queueNanos > 0) millis(sb, "queue_ms", queueNanos);
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            if (stageCalls[i] == 0) continue;
+            millis(sb, stage.label + "_ms", stageNanos[i]);
+            if (stage == Stage.BACKEND && firstTokenNanos >= 0) millis(sb, "first_token_ms", firstTokenNanos);
+            if (stageCalls[i] > 1) sb.append(' ').append(stage.label).append("s=").append(stageCalls[i]);
+        }
+        if (requestChars > 0) sb.append(" request_chars=").append(requestChars);
+        if (parts > 0) sb.append(" response_chars=").append(responseChars).append(" parts=").append(parts);
+        return sb.toString();
+    }
+
+    private static String outcome(SignalType signal) {
+        return switch (signal) {
+            case ON_COMPLETE -> "complete";
+            case ON_ERROR -> "error";
+            case CANCEL -> "cancel";
+            default -> signal.toString();
+        };
+    }
+
+    private static void millis(StringBuilder sb, String key, long nanos) {
+        sb.append(' ').append(key).append('=').append(nanos / 1_000_000);
+    }
+}
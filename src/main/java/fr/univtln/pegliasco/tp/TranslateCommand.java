@@ -0,0 +1,58 @@
+package fr.univtln.pegliasco.tp;
+
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+public class TranslateCommand implements CommandHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(TranslateCommand.class);
+
+    private static final ApplicationCommandRequest DEFINITION = ApplicationCommandRequest.builder()
+            .name("translate")
+            .description("Traduire un texte en français.")
+            .addOption(ApplicationCommandOptionData.builder()
+                    .name("text")
+                    .description("Le texte à traduire.")
+                    .type(3)
+                    .required(true)
+                    .build())
+            .build();
+
+    private final OllamaClient ollama;
+
+    public TranslateCommand(OllamaClient ollama) {
+        this.ollama = ollama;
+    }
+
+    @Override
+    public ApplicationCommandRequest definition() {
+        return DEFINITION;
+    }
+
+    @Override
+    public Mono<Void> handle(ChatInputInteractionEvent evt) {
+        log.info("Interaction /translate reçue");
+
+        String textToTranslate = CommandHandler.stringOption(evt, "text");
+
+        log.info("Texte reçu pour traduction : {}", textToTranslate);
+
+        if (textToTranslate.isBlank()) {
+            return evt.reply()
+                    .withEphemeral(true)
+                    .withContent("Veuillez fournir un texte à traduire.");
+        }
+
+        return CommandMetrics.time(CommandMetrics.Stage.DEFER, evt.deferReply())
+                .then(
+                        StreamingReply.stream(
+                                ollama.streamTranslation(textToTranslate),
+                                StreamingReply.followups(evt),
+                                "Erreur lors de la traduction du texte.")
+                );
+    }
+}
@@ -0,0 +1,219 @@
+package fr.univtln.pegliasco.tp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recherche sémantique des passages pour /qa : chaque passage est vectorisé à l'indexation
+ * (par lots, en arrière-plan) puis inséré dans un index HNSW propre au salon.
+ * Les lots de tous les documents passent par une seule file, avec au plus {@value #EMBED_CONCURRENCY}
+ * appels simultanés au backend (la restauration au démarrage ne le submerge pas) et des reprises
+ * espacées en cas d'échec. Avec un {@link VectorStore}, les vecteurs calculés sont persistés
+ * et relus au redémarrage au lieu d'être recalculés.
+ */
+public final class VectorRetriever implements DocumentStore.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(VectorRetriever.class);
+
+    private static final int BATCH_SIZE = 32;
+    private static final int EMBED_CONCURRENCY = 2;
+    private static final int MAX_RETRIES = 5;
+    private static final int HNSW_M = 16;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int EF_SEARCH = 100;
+
+    /** Vecteurs persistés à côté des documents, par lot de passages. */
+    public interface VectorStore {
+        /** Vecteurs des passages {@code first} à {@code first + count - 1} du document ; vide s'ils sont inconnus. */
+        Mono<List<float[]>> vectors(DocumentStore.DocumentInfo doc, String model, int first, int count);
+
+        void saveVectors(DocumentStore.DocumentInfo doc, String model, int first, List<float[]> vectors);
+    }
+
+    private static final class ChannelVectors {
+        HnswIndex index;
+        final List<Passage> passages = new ArrayList<>();     // identifiant de nœud → passage
+        final Map<Long, List<Integer>> nodesByDocument = new HashMap<>();
+        final Set<Long> liveDocuments = new HashSet<>();
+    }
+
+    /**
+     * Lot de passages d'un document, à partir du passage n° {@code first} ;
+     * {@code remaining} : lots du document pas encore indexés.
+     */
+    private record Batch(ChannelVectors channel, DocumentStore.DocumentInfo doc, int first, List<Passage> passages,
+                         AtomicInteger remaining) {}
+
+    private final EmbeddingClient embeddings;
+    private final VectorStore store;
+    private final int topK;
+    private final Map<Long, ChannelVectors> channels = new ConcurrentHashMap<>();
+    private final Sinks.Many<Batch> queue = Sinks.many().unicast().onBackpressureBuffer();
+
+    /** {@code store} null : rien n'est persisté, tout est revectorisé au redémarrage. */
+    public VectorRetriever(EmbeddingClient embeddings, VectorStore store, int topK) {
+        this.embeddings = embeddings;
+        this.store = store;
+        this.topK = topK;
+
+        queue.asFlux()
+                .flatMap(this::embed, EMBED_CONCURRENCY)
+                .subscribe();
+    }
+
+    @Override
+    public void added(DocumentStore.DocumentInfo doc, String text) {
+        ChannelVectors channel = channels.computeIfAbsent(doc.channelId(), k -> new ChannelVectors());
+        synchronized (channel) {
+            channel.liveDocuments.add(doc.id());
+        }
+
+        List<Passage> passages = new ArrayList<>();
+        for (String chunk : PassageRetriever.chunk(text)) {
+            passages.add(new Passage(doc.id(), doc.name(), chunk));
+        }
+
+        // La vectorisation part en asynchrone, dans la file commune
+        AtomicInteger remaining = new AtomicInteger((passages.size() + BATCH_SIZE - 1) / BATCH_SIZE);
+        synchronized (queue) {
+            for (int i = 0; i < passages.size(); i += BATCH_SIZE) {
+                List<Passage> batch = passages.subList(i, Math.min(passages.size(), i + BATCH_SIZE));
+                Sinks.EmitResult result = queue.tryEmitNext(new Batch(channel, doc, i, batch, remaining));
+                if (result.isFailure()) {
+                    log.warn("Vectorisation de {} impossible : file refusée ({})", doc.name(), result);
+                    return;
+                }
+            }
+        }
+    }
+
+    private Mono<Void> embed(Batch batch) {
+        // Document retiré avant son tour : rien à vectoriser
+        if (!isLive(batch)) return Mono.empty();
+        int count = batch.passages().size();
+        Mono<List<float[]>> computed = embeddings.embed(batch.passages().stream().map(Passage::text).toList())
+                .retryWhen(Retry.backoff(MAX_RETRIES, Duration.ofSeconds(1))
+                        .maxBackoff(Duration.ofSeconds(30))
+                        .filter(e -> isLive(batch)));
+        if (store != null) {
+            computed = store.vectors(batch.doc(), embeddings.model(), batch.first(), count)
+                    .switchIfEmpty(computed.doOnNext(vectors ->
+                            store.saveVectors(batch.doc(), embeddings.model(), batch.first(), vectors)));
+        }
+        return computed
+                .publishOn(Schedulers.boundedElastic())
+                .doOnNext(vectors -> {
+                    insert(batch.channel(), batch.passages(), vectors);
+                    if (batch.remaining().decrementAndGet() == 0) {
+                        log.info("Passages de {} vectorisés pour le salon {}", batch.doc().name(), batch.doc().channelId());
+                    }
+                })
+                .onErrorResume(e -> {
+                    log.warn("Vectorisation de {} impossible ({} passages sans vecteur) : {}",
+                            batch.doc().name(), batch.passages().size(), e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private static boolean isLive(Batch batch) {
+        synchronized (batch.channel()) {
+            return batch.channel().liveDocuments.contains(batch.doc().id());
+        }
+    }
+
+    @Override
+    public void removed(DocumentStore.DocumentInfo doc) {
+        ChannelVectors channel = channels.get(doc.channelId());
+        if (channel == null) return;
+        synchronized (channel) {
+            channel.liveDocuments.remove(doc.id());
+            List<Integer> nodes = channel.nodesByDocument.remove(doc.id());
+            if (nodes != null && channel.index != null) {
+                nodes.forEach(channel.index::markDeleted);
+                if (channel.index.deletedCount() > channel.index.size() / 2) {
+                    rebuild(channel);
+                }
+            }
+            if (channel.liveDocuments.isEmpty()) channels.remove(doc.channelId(), channel);
+        }
+    }
+
+    /** Passages les plus proches de la question, du plus au moins similaire. */
+    public Mono<List<Passage>> search(long channelId, String question) {
+        ChannelVectors channel = channels.get(channelId);
+        if (channel == null) return Mono.just(List.of());
+
+        return embeddings.embed(List.of(question)).map(vectors -> {
+            float[] query = normalize(vectors.get(0));
+            synchronized (channel) {
+                if (channel.index == null || channel.index.dim() != query.length) return List.of();
+                List<Passage> result = new ArrayList<>(topK);
+                for (int id : channel.index.search(query, topK, EF_SEARCH)) {
+                    result.add(channel.passages.get(id));
+                }
+                return result;
+            }
+        });
+    }
+
+    private void insert(ChannelVectors channel, List<Passage> batch, List<float[]> vectors) {
+        synchronized (channel) {
+            for (int i = 0; i < batch.size(); i++) {
+                Passage passage = batch.get(i);
+                // Document retiré pendant la vectorisation : on n'indexe pas
+                if (!channel.liveDocuments.contains(passage.documentId())) return;
+
+                float[] vector = normalize(vectors.get(i));
+                if (channel.index == null) {
+                    channel.index = new HnswIndex(vector.length, HNSW_M, EF_CONSTRUCTION);
+                }
+                int id = channel.index.add(vector);
+                channel.passages.add(passage);
+                channel.nodesByDocument.computeIfAbsent(passage.documentId(), k -> new ArrayList<>()).add(id);
+            }
+        }
+    }
+
+    /** Reconstruit l'index sans les nœuds supprimés (appelé sous le verrou du salon). */
+    private void rebuild(ChannelVectors channel) {
+        HnswIndex old = channel.index;
+        List<Passage> oldPassages = new ArrayList<>(channel.passages);
+        HnswIndex fresh = new HnswIndex(old.dim(), HNSW_M, EF_CONSTRUCTION);
+
+        channel.passages.clear();
+        channel.nodesByDocument.clear();
+        for (int id = 0; id < old.size(); id++) {
+            if (old.isDeleted(id)) continue;
+            Passage passage = oldPassages.get(id);
+            int newId = fresh.add(old.vector(id));
+            channel.passages.add(passage);
+            channel.nodesByDocument.computeIfAbsent(passage.documentId(), k -> new ArrayList<>()).add(newId);
+        }
+        channel.index = fresh;
+    }
+
+    private static float[] normalize(float[] v) {
+        double norm = 0;
+        for (float x : v) norm += x * x;
+        if (norm == 0) return v;
+        float inv = (float) (1.0 / Math.sqrt(norm));
+        float[] out = new float[v.length];
+        for (int i = 0; i < v.length; i++) out[i] = v[i] * inv;
+        return out;
+    }
+}